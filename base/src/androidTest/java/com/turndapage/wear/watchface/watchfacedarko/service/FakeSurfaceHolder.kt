@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.graphics.Canvas
+import android.graphics.PixelFormat
+import android.graphics.Rect
+import android.view.Surface
+import android.view.SurfaceHolder
+
+/**
+ * Surface holder with no surface behind it, for engines driven by a test, which draws their
+ * frames into bitmaps itself. Remembers the pixel format the engine asked for.
+ */
+class FakeSurfaceHolder(width: Int, height: Int) : SurfaceHolder {
+
+    private val frame = Rect(0, 0, width, height)
+
+    var requestedFormat = PixelFormat.OPAQUE
+        private set
+
+    override fun addCallback(callback: SurfaceHolder.Callback) {}
+
+    override fun removeCallback(callback: SurfaceHolder.Callback) {}
+
+    override fun isCreating(): Boolean = false
+
+    @Suppress("OverridingDeprecatedMember")
+    override fun setType(type: Int) {}
+
+    override fun setFixedSize(width: Int, height: Int) {}
+
+    override fun setSizeFromLayout() {}
+
+    override fun setFormat(format: Int) {
+        requestedFormat = format
+    }
+
+    override fun setKeepScreenOn(screenOn: Boolean) {}
+
+    override fun lockCanvas(): Canvas? = null
+
+    override fun lockCanvas(dirty: Rect?): Canvas? = null
+
+    override fun unlockCanvasAndPost(canvas: Canvas) {}
+
+    override fun getSurfaceFrame(): Rect = frame
+
+    override fun getSurface(): Surface? = null
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.os.Debug
+import android.support.test.InstrumentationRegistry
+import android.support.test.runner.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Test
+import org.junit.runner.RunWith
+
+private const val FRAME_COUNT = 100
+private const val SURFACE_SIZE = 390
+
+/**
+ * Checks that steady-state frames, drawn once every layer is cached, allocate nothing on the
+ * main thread, for every face in every render mode.
+ */
+@RunWith(AndroidJUnit4::class)
+class FrameAllocationTest {
+
+    @Test
+    fun interactiveFramesDontAllocate() {
+        for (face in getFaces()) {
+            assertFramesDontAllocate(WatchFaceHarness(face, SURFACE_SIZE), false, false)
+        }
+    }
+
+    @Test
+    fun ambientFramesDontAllocate() {
+        for (face in getFaces()) {
+            assertFramesDontAllocate(WatchFaceHarness(face, SURFACE_SIZE), true, false)
+        }
+    }
+
+    @Test
+    fun lowBitAmbientFramesDontAllocate() {
+        for (face in getFaces()) {
+            assertFramesDontAllocate(WatchFaceHarness(face, SURFACE_SIZE), true, true)
+        }
+    }
+
+    /**
+     * Counts the main thread's allocations over [FRAME_COUNT] frames after warming up. Only the
+     * calling thread is counted, so the render thread composing layers doesn't show up.
+     */
+    @Suppress("DEPRECATION")
+    private fun assertFramesDontAllocate(harness: WatchFaceHarness, ambient: Boolean,
+                                         lowBitAmbient: Boolean) {
+        // Complications are shown in ambient too, so their layers are drawn in every mode.
+        harness.start(false, lowBitAmbient)
+        try {
+            harness.setAmbient(ambient)
+            harness.warmUp()
+
+            var allocationCount = 0
+            InstrumentationRegistry.getInstrumentation().runOnMainSync {
+                Debug.resetThreadAllocCount()
+                Debug.startAllocCounting()
+                for (i in 0 until FRAME_COUNT) {
+                    harness.draw()
+                }
+                Debug.stopAllocCounting()
+                allocationCount = Debug.getThreadAllocCount()
+            }
+            assertEquals("${harness.name} allocations in $FRAME_COUNT frames, ambient: " +
+                    "$ambient, low-bit: $lowBitAmbient", 0, allocationCount)
+        } finally {
+            harness.stop()
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.support.test.InstrumentationRegistry
+import android.support.test.runner.AndroidJUnit4
+import android.util.Log
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+private const val TAG = "LitPixelBudgetTest"
+
+/**
+ * Round screen sizes the faces ship on.
+ */
+private val SURFACE_SIZES = intArrayOf(320, 390, 454)
+
+/**
+ * Checks that no face lights more of a low-bit ambient screen than its style's
+ * ambientLitPixelBudget, at every screen size, with complications shown and hidden. Regular
+ * ambient frames draw the whole background in gray, so they are measured and logged but not
+ * held to the budget.
+ */
+@RunWith(AndroidJUnit4::class)
+class LitPixelBudgetTest {
+
+    @Test
+    fun ambientFramesStayWithinBudget() {
+        for (face in getFaces()) {
+            for (size in SURFACE_SIZES) {
+                for (hideComplications in booleanArrayOf(false, true)) {
+                    for (lowBitAmbient in booleanArrayOf(false, true)) {
+                        assertWithinBudget(WatchFaceHarness(face, size), hideComplications,
+                                lowBitAmbient)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws the first ambient frame, which composes whatever it is missing in place, and
+     * measures it. Only low-bit frames have to stay within the budget.
+     */
+    private fun assertWithinBudget(harness: WatchFaceHarness, hideComplications: Boolean,
+                                   lowBitAmbient: Boolean) {
+        harness.start(hideComplications, lowBitAmbient)
+        try {
+            harness.setAmbient(true)
+            InstrumentationRegistry.getInstrumentation().runOnMainSync { harness.draw() }
+            val stats = analyzeLitPixels(harness.frame)
+
+            val budget = harness.style.watchFaceStyle.ambientLitPixelBudget
+            val message = "${harness.name} ${harness.size}px, complications " +
+                    "${if (hideComplications) "hidden" else "shown"}, low-bit: $lowBitAmbient: " +
+                    "lit ${stats.litRatio * 100}%, mean luminance ${stats.meanLuminance * 100}%"
+            Log.d(TAG, message)
+            if (lowBitAmbient) {
+                assertTrue("$message, over the budget of ${budget * 100}%",
+                        stats.litRatio <= budget)
+            }
+        } finally {
+            harness.stop()
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.ColorMatrix
+import android.graphics.ColorMatrixColorFilter
+import android.graphics.Paint
+import android.graphics.Rect
+import android.support.test.InstrumentationRegistry
+import android.support.test.runner.AndroidJUnit4
+import com.turndapage.wear.watchface.watchfacedarko.model.EMPTY_IMAGE_RESOURCE
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import org.junit.runner.RunWith
+
+/**
+ * Largest difference allowed in any channel between the ambient dial drawn the old way and its
+ * luminance layer drawn with the tint.
+ */
+private const val LUMINANCE_TOLERANCE = 2
+
+/**
+ * The same for faces with 16-bit layers, whose grays aren't quite gray: red and blue are rounded
+ * to 5 bits and green to 6.
+ */
+private const val RGB_565_LUMINANCE_TOLERANCE = 8
+
+private const val SURFACE_SIZE = 390
+
+/**
+ * Checks that every ambient dial the engine keeps as a luminance layer looks the same, once
+ * tinted, as ambient frames did before: a grayed copy of the background with the ticks and
+ * numerals on top. Low-bit ambient isn't checked, since it dithers the background by design.
+ */
+@RunWith(AndroidJUnit4::class)
+class LuminanceLayerTest {
+
+    @Test
+    fun luminanceDialsMatchGrayBackgroundDials() {
+        for (face in getFaces()) {
+            val harness = WatchFaceHarness(face, SURFACE_SIZE)
+            harness.start()
+            try {
+                assertLuminanceLayerMatches(harness)
+            } finally {
+                harness.stop()
+            }
+        }
+    }
+
+    private fun assertLuminanceLayerMatches(harness: WatchFaceHarness) {
+        val engine = harness.engine
+        val palette = engine.getPalette(RENDER_MODE_AMBIENT)
+        // Dials with colored ticks are kept in full color.
+        val tint = palette.luminanceTint ?: return
+
+        val rasterizer = TiledRasterizer(1)
+        val luminance = engine.composeDialLayer(RENDER_MODE_AMBIENT, rasterizer)
+        rasterizer.shutdown()
+        val reference = drawGrayBackgroundDial(harness, palette.backgroundColor)
+        try {
+            assertEquals(harness.name, Bitmap.Config.ALPHA_8, luminance.config)
+            val maxError = getMaxError(reference, luminance, tint, palette.backgroundColor)
+            val tolerance = if (harness.frame.config == Bitmap.Config.RGB_565)
+                RGB_565_LUMINANCE_TOLERANCE else LUMINANCE_TOLERANCE
+            assertTrue("${harness.name} differs by up to $maxError", maxError <= tolerance)
+        } finally {
+            reference.recycle()
+            luminance.recycle()
+        }
+    }
+
+    /**
+     * Draws the ambient dial the way ambient frames were drawn before luminance layers: a copy
+     * of the background grayed with a saturation 0 color matrix, scaled to the surface width,
+     * under the engine's ticks and numerals.
+     */
+    private fun drawGrayBackgroundDial(harness: WatchFaceHarness, backgroundColor: Int): Bitmap {
+        val dial = Bitmap.createBitmap(harness.size, harness.size, Bitmap.Config.ARGB_8888)
+        val canvas = Canvas(dial)
+        canvas.drawColor(backgroundColor)
+
+        val resource = harness.style.watchFaceBackgroundImage.backgroundImageResource
+        if (resource != EMPTY_IMAGE_RESOURCE) {
+            val resources = InstrumentationRegistry.getInstrumentation().targetContext.resources
+            val background = BitmapFactory.decodeResource(resources, resource)
+            val grayBackground = Bitmap.createBitmap(background.width, background.height,
+                    Bitmap.Config.ARGB_8888)
+            Canvas(grayBackground).drawBitmap(background, 0f, 0f, Paint().apply {
+                colorFilter = ColorMatrixColorFilter(ColorMatrix().apply { setSaturation(0f) })
+            })
+            val scale = harness.size.toFloat() / background.width
+            canvas.drawBitmap(grayBackground, null, Rect(0, 0, (background.width * scale).toInt(),
+                    (background.height * scale).toInt()), Paint(Paint.FILTER_BITMAP_FLAG))
+            background.recycle()
+            grayBackground.recycle()
+        }
+
+        harness.engine.drawDialMarks(canvas, RENDER_MODE_AMBIENT)
+        return dial
+    }
+
+    /**
+     * Draws [luminance] with [tint] over [backgroundColor], as the engine does, and returns the
+     * largest difference in any channel of any pixel from [layer].
+     */
+    private fun getMaxError(layer: Bitmap, luminance: Bitmap, tint: Paint,
+                            backgroundColor: Int): Int {
+        val width = layer.width
+        val height = layer.height
+        val tinted = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+        val canvas = Canvas(tinted)
+        canvas.drawColor(backgroundColor)
+        canvas.drawBitmap(luminance, 0f, 0f, tint)
+
+        val expected = IntArray(width)
+        val actual = IntArray(width)
+        var maxError = 0
+        for (y in 0 until height) {
+            layer.getPixels(expected, 0, width, 0, y, width, 1)
+            tinted.getPixels(actual, 0, width, 0, y, width, 1)
+            for (x in 0 until width) {
+                maxError = Math.max(maxError, Math.max(
+                        Math.abs(Color.red(expected[x]) - Color.red(actual[x])),
+                        Math.max(Math.abs(Color.green(expected[x]) - Color.green(actual[x])),
+                                Math.abs(Color.blue(expected[x]) - Color.blue(actual[x])))))
+            }
+        }
+        tinted.recycle()
+        return maxError
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.PorterDuff
+import android.graphics.PorterDuffColorFilter
+import android.graphics.Rect
+import android.graphics.drawable.Drawable
+import android.os.SystemClock
+import android.support.test.InstrumentationRegistry
+import android.support.test.runner.AndroidJUnit4
+import android.support.v4.content.res.ResourcesCompat
+import android.util.Log
+import com.turndapage.wear.watchface.watchfacedarko.R
+import com.turndapage.wear.watchface.watchfacedarko.model.AnalogWatchFaceStyle
+import com.turndapage.wear.watchface.watchfacedarko.model.EMPTY_IMAGE_RESOURCE
+import org.junit.Test
+import org.junit.runner.RunWith
+
+private const val TAG = "RenderBenchmark"
+
+/**
+ * Largest round screen the faces ship on, where every cost is highest.
+ */
+private const val SURFACE_SIZE = 454
+
+/**
+ * Number of new engines timed to their first frame per face and tile count.
+ */
+private const val FIRST_FRAME_COUNT = 5
+
+/**
+ * Not pass/fail checks: each benchmark logs, per face, how long a rendering path takes against
+ * the path it replaced. Times are means after warming up, in milliseconds.
+ */
+@RunWith(AndroidJUnit4::class)
+class RenderBenchmark {
+
+    private val instrumentation = InstrumentationRegistry.getInstrumentation()
+
+    /**
+     * From a surface change to the end of the first frame on a new engine, with dial layers
+     * composed single threaded and in as many tiles as the engine uses. Nothing is cached yet,
+     * so the frame composes its dial and rasterizes its sprites in place.
+     */
+    @Test
+    fun benchmarkSurfaceChangeToFirstFrame() {
+        val tileCount = Math.min(Runtime.getRuntime().availableProcessors(), MAX_RASTER_THREADS)
+        for (face in getFaces()) {
+            // Loads the face's resources and warms up the code paths.
+            timeFirstFrame(face, tileCount)
+            // Alternated, so both see the same conditions.
+            var singleMs = 0f
+            var tiledMs = 0f
+            for (i in 0 until FIRST_FRAME_COUNT) {
+                singleMs += timeFirstFrame(face, 1)
+                tiledMs += timeFirstFrame(face, tileCount)
+            }
+            Log.d(TAG, "${face.javaClass.simpleName} surface change to first frame " +
+                    "${SURFACE_SIZE}px: 1 tile ${singleMs / FIRST_FRAME_COUNT}ms, $tileCount " +
+                    "tiles ${tiledMs / FIRST_FRAME_COUNT}ms")
+        }
+    }
+
+    /**
+     * Returns how long it takes a new engine showing [face], composing with [tileCount] tiles,
+     * from a surface change to the end of its first frame.
+     */
+    private fun timeFirstFrame(face: AbstractKotlinWatchFace, tileCount: Int): Float {
+        val harness = WatchFaceHarness(face, SURFACE_SIZE)
+        harness.create()
+        var elapsedMs = 0f
+        try {
+            instrumentation.runOnMainSync {
+                harness.engine.setRasterTileCount(tileCount)
+                val startNanos = SystemClock.elapsedRealtimeNanos()
+                harness.changeSurface()
+                harness.draw()
+                elapsedMs = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1e6f
+            }
+        } finally {
+            harness.stop()
+        }
+        return elapsedMs
+    }
+
+    /**
+     * A full-screen blit of each face's interactive frame in ARGB_8888 and in RGB_565, each onto
+     * a surface of the same config, and how much memory its background and each full-screen
+     * layer take in either.
+     */
+    @Test
+    fun benchmarkBlits() {
+        val resources = instrumentation.targetContext.resources
+        for (face in getFaces()) {
+            val harness = WatchFaceHarness(face, SURFACE_SIZE)
+            harness.start()
+            try {
+                harness.warmUp()
+                val argb = harness.frame.copy(Bitmap.Config.ARGB_8888, false)
+                val rgb565 = harness.frame.copy(Bitmap.Config.RGB_565, false)
+                val argbMs = timeBlit(argb)
+                val rgb565Ms = timeBlit(rgb565)
+                Log.d(TAG, "${harness.name} full-screen blit ${SURFACE_SIZE}px: ARGB_8888 " +
+                        "${argbMs}ms, RGB_565 ${rgb565Ms}ms; layer ${argb.byteCount} vs " +
+                        "${rgb565.byteCount} bytes")
+                argb.recycle()
+                rgb565.recycle()
+
+                val backgroundResource =
+                        harness.style.watchFaceBackgroundImage.backgroundImageResource
+                if (backgroundResource != EMPTY_IMAGE_RESOURCE) {
+                    val background = BitmapFactory.decodeResource(resources, backgroundResource)
+                    // Each pixel takes 2 bytes instead of 4 once converted.
+                    Log.d(TAG, "${harness.name} background ${background.width}x" +
+                            "${background.height}: ARGB_8888 ${background.byteCount} vs " +
+                            "RGB_565 ${background.byteCount / 2} bytes")
+                    background.recycle()
+                }
+            } finally {
+                harness.stop()
+            }
+        }
+    }
+
+    /**
+     * An interactive frame with the hands and center circle blitted from sprites with baked
+     * shadows, and with them drawn live through Paint.setShadowLayer as they used to be. Both
+     * draw over the face's real dial.
+     */
+    @Test
+    fun benchmarkBakedShadows() {
+        val context = instrumentation.targetContext
+        for (face in getFaces()) {
+            val harness = WatchFaceHarness(face, SURFACE_SIZE)
+            harness.start()
+            try {
+                harness.warmUp()
+                val hands = Hands(context, harness.style, SURFACE_SIZE)
+                val dial = harness.frame
+                val surface = Bitmap.createBitmap(SURFACE_SIZE, SURFACE_SIZE, dial.config)
+                val canvas = Canvas(surface)
+
+                // The frame number moves the hands from frame to frame.
+                var frame = 0
+                val bakedMs = timeMs(10, 100) {
+                    canvas.drawBitmap(dial, 0f, 0f, null)
+                    hands.drawBaked(canvas, frame++)
+                }
+                frame = 0
+                val liveMs = timeMs(10, 100) {
+                    canvas.drawBitmap(dial, 0f, 0f, null)
+                    hands.drawLive(canvas, frame++)
+                }
+                Log.d(TAG, "${harness.name} frame ${SURFACE_SIZE}px: baked shadows " +
+                        "${bakedMs}ms, live shadows ${liveMs}ms")
+                surface.recycle()
+                hands.release()
+            } finally {
+                harness.stop()
+            }
+        }
+    }
+
+    /**
+     * Returns the mean time in milliseconds of [iterationCount] runs of [block], after
+     * [warmUpCount] untimed ones.
+     */
+    private inline fun timeMs(warmUpCount: Int, iterationCount: Int, block: () -> Unit): Float {
+        for (i in 0 until warmUpCount) {
+            block()
+        }
+        val startNanos = SystemClock.elapsedRealtimeNanos()
+        for (i in 0 until iterationCount) {
+            block()
+        }
+        return (SystemClock.elapsedRealtimeNanos() - startNanos) / 1e6f / iterationCount
+    }
+
+    /**
+     * Returns the mean time to draw [frame] over a surface-sized bitmap of the same config.
+     */
+    private fun timeBlit(frame: Bitmap): Float {
+        val surface = Bitmap.createBitmap(frame.width, frame.height, frame.config)
+        val canvas = Canvas(surface)
+        val blitMs = timeMs(20, 200) { canvas.drawBitmap(frame, 0f, 0f, null) }
+        surface.recycle()
+        return blitMs
+    }
+
+    /**
+     * The hands and center circle of [style] both as the engine's sprites and as the paints
+     * they were drawn live with before shadows were baked.
+     */
+    private class Hands(context: Context, style: AnalogWatchFaceStyle, size: Int) {
+
+        private val hourHandDrawable = getHandDrawable(context, style.watchFaceHourHand.drawable,
+                style.watchFaceColors.main)
+        private val minuteHandDrawable = getHandDrawable(context,
+                style.watchFaceMinuteHand.drawable, style.watchFaceColors.main)
+
+        // Sized like the engine's date paint, which the numeral positions depend on.
+        private val geometry = DialGeometry(size, size, style, Paint().apply {
+            typeface = ResourcesCompat.getFont(context, R.font.frank_knows)
+            textSize = 40f
+        }, hourHandDrawable, minuteHandDrawable)
+
+        private val dimensions = style.watchFaceDimensions
+        private val colors = style.watchFaceColors
+
+        private val hourSprite = if (hourHandDrawable == null)
+            LineHandSprite(geometry.centerX, geometry.armStartY, geometry.hourHandEndY,
+                    dimensions.hourHandWidth, colors.main, dimensions.shadowRadius, colors.shadow)
+        else
+            DrawableHandSprite(hourHandDrawable, geometry.hourHandBounds, colors.main)
+        private val minuteSprite = if (minuteHandDrawable == null)
+            LineHandSprite(geometry.centerX, geometry.armStartY, geometry.minuteHandEndY,
+                    dimensions.minuteHandWidth, colors.main, dimensions.shadowRadius,
+                    colors.shadow)
+        else
+            DrawableHandSprite(minuteHandDrawable, geometry.minuteHandBounds, colors.main)
+        private val secondSprite = LineHandSprite(geometry.centerX, geometry.armStartY,
+                geometry.secondHandEndY, dimensions.secondHandWidth, colors.highlight,
+                dimensions.shadowRadius, colors.shadow)
+        private val circleSprite = CenterCircleSprite(geometry.centerX, geometry.centerY,
+                dimensions.innerCircleRadius, colors.main, dimensions.shadowRadius,
+                colors.shadow)
+        private val spritePaint = Paint(Paint.FILTER_BITMAP_FLAG or Paint.ANTI_ALIAS_FLAG)
+
+        private val hourPaint = getShadowPaint(dimensions.hourHandWidth, colors.main)
+        private val minutePaint = getShadowPaint(dimensions.minuteHandWidth, colors.main)
+        private val secondPaint = getShadowPaint(dimensions.secondHandWidth, colors.highlight)
+        private val circlePaint = getShadowPaint(0f, colors.main).apply {
+            style = Paint.Style.FILL
+        }
+
+        fun drawBaked(canvas: Canvas, frame: Int) {
+            val centerX = geometry.centerX
+            val centerY = geometry.centerY
+            hourSprite.draw(canvas, RENDER_MODE_INTERACTIVE, getHourDegrees(frame), centerX,
+                    centerY, spritePaint)
+            minuteSprite.draw(canvas, RENDER_MODE_INTERACTIVE, getMinuteDegrees(frame), centerX,
+                    centerY, spritePaint)
+            secondSprite.draw(canvas, RENDER_MODE_INTERACTIVE, getSecondDegrees(frame), centerX,
+                    centerY, spritePaint)
+            circleSprite.draw(canvas, RENDER_MODE_INTERACTIVE, 0f, centerX, centerY, spritePaint)
+        }
+
+        fun drawLive(canvas: Canvas, frame: Int) {
+            drawLiveHand(canvas, getHourDegrees(frame), hourHandDrawable, geometry.hourHandBounds,
+                    geometry.hourHandEndY, hourPaint)
+            drawLiveHand(canvas, getMinuteDegrees(frame), minuteHandDrawable,
+                    geometry.minuteHandBounds, geometry.minuteHandEndY, minutePaint)
+            drawLiveHand(canvas, getSecondDegrees(frame), null, null, geometry.secondHandEndY,
+                    secondPaint)
+            canvas.drawCircle(geometry.centerX, geometry.centerY, dimensions.innerCircleRadius,
+                    circlePaint)
+        }
+
+        fun release() {
+            hourSprite.release()
+            minuteSprite.release()
+            secondSprite.release()
+            circleSprite.release()
+        }
+
+        private fun drawLiveHand(canvas: Canvas, degrees: Float, drawable: Drawable?,
+                                 bounds: Rect?, endY: Float, paint: Paint) {
+            canvas.save()
+            canvas.rotate(degrees, geometry.centerX, geometry.centerY)
+            if (drawable != null) {
+                // Drawable hands never had a shadow.
+                drawable.bounds = bounds
+                drawable.draw(canvas)
+            } else {
+                canvas.drawLine(geometry.centerX, geometry.armStartY, geometry.centerX, endY,
+                        paint)
+            }
+            canvas.restore()
+        }
+
+        private fun getShadowPaint(width: Float, color: Int): Paint {
+            return Paint().apply {
+                this.color = color
+                strokeWidth = width
+                isAntiAlias = true
+                strokeCap = Paint.Cap.ROUND
+                setShadowLayer(dimensions.shadowRadius, 0f, 0f, colors.shadow)
+            }
+        }
+
+        private fun getSecondDegrees(frame: Int) = frame * 6f
+        private fun getMinuteDegrees(frame: Int) = frame * 0.1f
+        private fun getHourDegrees(frame: Int) = frame * 0.5f / 60f
+
+        companion object {
+            fun getHandDrawable(context: Context, resource: Int, color: Int): Drawable? {
+                if (resource == 0) {
+                    return null
+                }
+                return context.getDrawable(resource).apply {
+                    colorFilter = PorterDuffColorFilter(color, PorterDuff.Mode.MULTIPLY)
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.PixelFormat
+import android.graphics.Rect
+import android.os.Bundle
+import android.os.SystemClock
+import android.support.test.InstrumentationRegistry
+import android.support.wearable.complications.ComplicationData
+import android.support.wearable.complications.ComplicationText
+import android.support.wearable.watchface.WatchFaceService
+import android.text.format.DateUtils
+import com.turndapage.wear.watchface.watchfacedarko.SettingsUtil
+import com.turndapage.wear.watchface.watchfacedarko.faces.DPoster
+import com.turndapage.wear.watchface.watchfacedarko.faces.FrankClassic
+import com.turndapage.wear.watchface.watchfacedarko.faces.SDarkoHalf
+import com.turndapage.wear.watchface.watchfacedarko.faces.SPoster
+import com.turndapage.wear.watchface.watchfacedarko.model.AnalogWatchFaceStyle
+
+/**
+ * How long to give the render thread to compose the layers a frame found stale.
+ */
+private const val LAYER_WAIT_MS = 1000L
+
+/**
+ * Frames are only measured this far into a minute, so the minute doesn't change under them.
+ */
+private const val LATEST_START_IN_MINUTE_MS = 50 * 1000L
+
+/**
+ * Returns a new instance of each face the app ships.
+ */
+fun getFaces(): List<AbstractKotlinWatchFace> {
+    return listOf(SPoster(), DPoster(), SDarkoHalf(), FrankClassic())
+}
+
+/**
+ * A watch face showing [style], created by a test instead of the system.
+ */
+class TestWatchFace(private val style: AnalogWatchFaceStyle) : AbstractKotlinWatchFace() {
+
+    override fun getWatchFaceStyle(): AnalogWatchFaceStyle = style
+
+    fun attach(context: Context) {
+        attachBaseContext(context)
+    }
+}
+
+/**
+ * Drives an engine showing [face] on a [size] x [size] surface on the main thread, the way the
+ * system would, and has it draw its frames into [frame] instead of a surface. Every complication
+ * is given text data, so its layer is drawn and cached like a real one.
+ *
+ * Create one per engine: call [start] (or [create], then [changeSurface]), then [draw] as often
+ * as needed, then [stop].
+ */
+class WatchFaceHarness(face: AbstractKotlinWatchFace, val size: Int) {
+
+    val name: String = face.javaClass.simpleName
+    val style = face.getWatchFaceStyle()
+
+    private val instrumentation = InstrumentationRegistry.getInstrumentation()
+    private val context = instrumentation.targetContext
+    private val watchFace = TestWatchFace(style)
+    private val holder = FakeSurfaceHolder(size, size)
+    private val bounds = Rect(0, 0, size, size)
+
+    lateinit var engine: AbstractKotlinWatchFace.Engine
+        private set
+
+    /** Last frame drawn, in the config of the surface the engine asked for. */
+    lateinit var frame: Bitmap
+        private set
+    private lateinit var canvas: Canvas
+
+    /* The user's setting, put back by stop. */
+    private var savedHideComplications = true
+
+    /**
+     * Creates the engine and gives it its surface.
+     */
+    fun start(hideComplicationsInAmbient: Boolean = true, lowBitAmbient: Boolean = false) {
+        create(hideComplicationsInAmbient, lowBitAmbient)
+        instrumentation.runOnMainSync { changeSurface() }
+    }
+
+    /**
+     * Creates the engine and sets its complication data, but gives it no surface yet.
+     * [hideComplicationsInAmbient] is applied through the setting the engine reads it from;
+     * [lowBitAmbient] is reported as a device property.
+     */
+    fun create(hideComplicationsInAmbient: Boolean = true, lowBitAmbient: Boolean = false) {
+        savedHideComplications = SettingsUtil.GetHideComplications(context)
+        SettingsUtil.SetHideComplications(context, hideComplicationsInAmbient)
+        instrumentation.runOnMainSync {
+            watchFace.attach(context)
+            engine = watchFace.onCreateEngine()
+            engine.onCreate(holder)
+            engine.onPropertiesChanged(Bundle().apply {
+                putBoolean(WatchFaceService.PROPERTY_LOW_BIT_AMBIENT, lowBitAmbient)
+            })
+            setComplicationData()
+        }
+        frame = Bitmap.createBitmap(size, size, if (holder.requestedFormat == PixelFormat.RGB_565)
+            Bitmap.Config.RGB_565 else Bitmap.Config.ARGB_8888)
+        canvas = Canvas(frame)
+    }
+
+    /**
+     * Gives the engine its surface, in the format it asked for. Call on the main thread.
+     */
+    fun changeSurface() {
+        engine.onSurfaceChanged(holder, holder.requestedFormat, size, size)
+    }
+
+    fun setAmbient(ambient: Boolean) {
+        instrumentation.runOnMainSync { engine.onAmbientModeChanged(ambient) }
+    }
+
+    /**
+     * Draws a frame into [frame]. Call on the main thread.
+     */
+    fun draw() {
+        engine.onDraw(canvas, bounds)
+    }
+
+    /**
+     * Draws frames until every layer they use is cached and up to date: the first frames
+     * compose what is missing in place and have the render thread replace what is stale.
+     * Waits for the next minute first if this one is about to end, so frames drawn right after
+     * this are drawn from the cache too.
+     */
+    fun warmUp() {
+        val timeInMinuteMs = System.currentTimeMillis() % DateUtils.MINUTE_IN_MILLIS
+        if (timeInMinuteMs > LATEST_START_IN_MINUTE_MS) {
+            SystemClock.sleep(DateUtils.MINUTE_IN_MILLIS - timeInMinuteMs)
+        }
+        for (i in 0 until 2) {
+            instrumentation.runOnMainSync { draw() }
+            // Composed layers are handed back on the main thread.
+            SystemClock.sleep(LAYER_WAIT_MS)
+            instrumentation.waitForIdleSync()
+        }
+        instrumentation.runOnMainSync { draw() }
+    }
+
+    fun stop() {
+        instrumentation.runOnMainSync { engine.onDestroy() }
+        frame.recycle()
+        SettingsUtil.SetHideComplications(context, savedHideComplications)
+    }
+
+    private fun setComplicationData() {
+        for (i in style.watchFaceComplications.indices) {
+            val longText = style.watchFaceComplications[i].defaultProviderType ==
+                    ComplicationData.TYPE_LONG_TEXT
+            val data = if (longText)
+                ComplicationData.Builder(ComplicationData.TYPE_LONG_TEXT)
+                        .setLongText(ComplicationText.plainText("28 days 06 hours 42 minutes"))
+                        .setLongTitle(ComplicationText.plainText("That is when"))
+                        .build()
+            else
+                ComplicationData.Builder(ComplicationData.TYPE_SHORT_TEXT)
+                        .setShortText(ComplicationText.plainText("28"))
+                        .setShortTitle(ComplicationText.plainText("Days"))
+                        .build()
+            engine.onComplicationDataUpdate(FIRST_COMPLICATION_ID + i, data)
+        }
+    }
+}
@@ -4,12 +4,17 @@ import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.Rect;
 
+import com.turndapage.wear.watchface.watchfacedarko.service.GlyphAtlas;
+
 public class TextRect {
     // maximum number of lines; this is a fixed number in order
     // to use a predefined array to avoid ArrayList (or something
     // similar) because filling it does involve allocating memory
     static private int MAX_LINES = 256;
 
+    // drawn after the last line if the text was cut
+    static private final String ELLIPSIS = "...";
+
     // those members are stored per instance to minimize
     // the number of allocations to avoid triggering the
     // GC too much
@@ -22,6 +27,9 @@ public class TextRect {
     private Rect bounds = new Rect();
     private String text = null;
     private boolean wasCut = false;
+    private int maxWidth = 0;
+    private int maxHeight = 0;
+    private GlyphAtlas glyphs = null;
 
     /**
      * Create reusable text rectangle (use one instance per font).
@@ -35,7 +43,22 @@ public class TextRect {
     }
 
     /**
-     * Calculate height of text block and prepare to draw it.
+     * Create reusable text rectangle that blits lines made of
+     * glyphs pre-rendered with the same paint instead of drawing
+     * them with the font.
+     *
+     * @param paint - paint specifying the font
+     * @param glyphs - glyphs rendered with paint
+     */
+    public TextRect( final Paint paint, final GlyphAtlas glyphs )
+    {
+        this( paint );
+        this.glyphs = glyphs;
+    }
+
+    /**
+     * Calculate height of text block and prepare to draw it. Preparing
+     * the same text for the same size again is free.
      *
      * @param text - text to draw
      * @param width - maximum width in pixels
@@ -47,9 +70,16 @@ public class TextRect {
             final int maxWidth,
             final int maxHeight )
     {
+        if( text.equals( this.text ) &&
+                maxWidth == this.maxWidth &&
+                maxHeight == this.maxHeight )
+            return textHeight;
+
         lines = 0;
         textHeight = 0;
         this.text = text;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
         wasCut = false;
 
         // get maximum number of characters in one line
@@ -195,25 +225,40 @@ public class TextRect {
         final int after = metrics.descent + metrics.leading;
         int y = top;
 
-        --lines;
-        for( int n = 0; n <= lines; ++n )
+        // draw straight from the text so no line strings are allocated
+        final int last = lines - 1;
+        for( int n = 0; n <= last; ++n )
         {
-            String t;
-
             y += before;
 
             if( wasCut &&
-                    n == lines &&
+                    n == last &&
                     stops[n] - starts[n] > 3 )
-                t = text.substring( starts[n], stops[n]/* - 3 */).concat( "..." );
-            else
-                t = text.substring( starts[n], stops[n] );
+            {
+                // place line and ellipsis as if they were one string
+                final float lineWidth = paint.measureText(
+                        text, starts[n], stops[n] );
+                final float ellipsisWidth = paint.measureText( ELLIPSIS );
+                float x = left;
+                float ellipsisX = left + lineWidth;
+
+                switch( paint.getTextAlign() )
+                {
+                    case CENTER:
+                        x = left - ellipsisWidth / 2;
+                        ellipsisX = left + lineWidth / 2;
+                        break;
+                    case RIGHT:
+                        x = left - ellipsisWidth;
+                        ellipsisX = left;
+                        break;
+                }
 
-            canvas.drawText(
-                    t,
-                    left,
-                    y,
-                    paint );
+                drawText( canvas, text, starts[n], stops[n], x, y );
+                drawText( canvas, ELLIPSIS, 0, ELLIPSIS.length(), ellipsisX, y );
+            }
+            else
+                drawText( canvas, text, starts[n], stops[n], left, y );
 
             y += after;
         }
@@ -224,4 +269,27 @@ public class TextRect {
     {
         return wasCut;
     }
+
+    /**
+     * Draw part of a line, from the glyph atlas if it has all of
+     * its glyphs.
+     */
+    private void drawText(
+            final Canvas canvas,
+            final String text,
+            final int start,
+            final int end,
+            final float x,
+            final int y )
+    {
+        if( glyphs == null ||
+                !glyphs.draw( canvas, text, start, end, x, y ) )
+            canvas.drawText(
+                    text,
+                    start,
+                    end,
+                    x,
+                    y,
+                    paint );
+    }
 }
@@ -17,6 +17,7 @@
 package com.turndapage.wear.watchface.watchfacedarko.faces
 
 import android.graphics.Color
+import android.support.wearable.complications.ComplicationData
 import android.view.Gravity
 import com.turndapage.wear.watchface.watchfacedarko.R
 import com.turndapage.wear.watchface.watchfacedarko.model.AnalogWatchFaceStyle
@@ -54,6 +55,7 @@ class DPoster : AbstractKotlinWatchFace() {
             }
             watchFaceBackgroundImage {
                 backgroundImageResource = R.drawable.dposter
+                rgb565 = true
             }
             watchFaceHourHand {
                 drawable = R.drawable.gothic_hour_hand
@@ -63,7 +65,7 @@ class DPoster : AbstractKotlinWatchFace() {
                 drawable = R.drawable.gothic_minute_hand
                 offset = .27f
             }
-            watchFaceComplication1 {
+            watchFaceComplication {
                 widthRatio = 0.25f
                 heightRatio = 0.25f
                 xPos = 0.9f
@@ -71,12 +73,13 @@ class DPoster : AbstractKotlinWatchFace() {
                 defaultProviderService = DaysToEndProviderService::class.java
                 titleTypeface = R.font.donnie_darko
             }
-            watchFaceComplication2 {
+            watchFaceComplication {
                 widthRatio = 0.25f
                 heightRatio = 0.25f
                 xPos = 0.1f
                 yPos = 0.5f
                 defaultProviderService = QuoteProviderService::class.java
+                defaultProviderType = ComplicationData.TYPE_LONG_TEXT
                 titleTypeface = R.font.donnie_darko
             }
             watchFaceStyle{
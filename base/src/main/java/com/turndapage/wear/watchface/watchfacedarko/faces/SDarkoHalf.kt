@@ -56,6 +56,7 @@ class SDarkoHalf : AbstractKotlinWatchFace() {
             }
             watchFaceBackgroundImage {
                 backgroundImageResource = R.drawable.half_metal
+                rgb565 = true
             }
             watchFaceHourHand {
                 drawable = R.drawable.gothic_hour_hand
@@ -65,7 +66,7 @@ class SDarkoHalf : AbstractKotlinWatchFace() {
                 drawable = R.drawable.gothic_minute_hand
                 offset = .27f
             }
-            watchFaceComplication1 {
+            watchFaceComplication {
                 widthRatio = 0.25f
                 heightRatio = 0.25f
                 xPos = 0.75f
@@ -78,7 +79,7 @@ class SDarkoHalf : AbstractKotlinWatchFace() {
                 defaultProviderService = DaysToEndLongProviderService::class.java
                 titleTypeface = R.font.donnie_darko
             }
-            watchFaceComplication2 {
+            watchFaceComplication {
                 widthRatio = 0.80f
                 heightRatio = 0.25f
                 xPos = 0.5f
@@ -89,6 +90,7 @@ class SDarkoHalf : AbstractKotlinWatchFace() {
                         ComplicationData.TYPE_SHORT_TEXT,
                         ComplicationData.TYPE_LONG_TEXT)
                 defaultProviderService = QuoteProviderService::class.java
+                defaultProviderType = ComplicationData.TYPE_LONG_TEXT
                 titleTypeface = R.font.donnie_darko
             }
             watchFaceStyle {
@@ -17,6 +17,7 @@
 package com.turndapage.wear.watchface.watchfacedarko.faces
 
 import android.graphics.Color
+import android.support.wearable.complications.ComplicationData
 import android.support.wearable.complications.SystemProviders
 import android.view.Gravity
 import com.turndapage.wear.watchface.watchfacedarko.R
@@ -55,6 +56,7 @@ class SPoster : AbstractKotlinWatchFace() {
             }
             watchFaceBackgroundImage {
                 backgroundImageResource = R.drawable.sposter
+                rgb565 = true
             }
             watchFaceHourHand {
                 drawable = R.drawable.gothic_hour_hand
@@ -64,7 +66,7 @@ class SPoster : AbstractKotlinWatchFace() {
                 drawable = R.drawable.gothic_minute_hand
                 offset = .27f
             }
-            watchFaceComplication1 {
+            watchFaceComplication {
                 widthRatio = 0.25f
                 heightRatio = 0.25f
                 xPos = 0.8f
@@ -72,15 +74,16 @@ class SPoster : AbstractKotlinWatchFace() {
                 defaultProviderService = DaysToEndProviderService::class.java
                 titleTypeface = R.font.donnie_darko
             }
-            watchFaceComplication2 {
+            watchFaceComplication {
                 widthRatio = 0.25f
                 heightRatio = 0.25f
                 xPos = 0.2f
                 yPos = 0.65f
                 defaultProviderService = QuoteProviderService::class.java
+                defaultProviderType = ComplicationData.TYPE_LONG_TEXT
                 titleTypeface = R.font.donnie_darko
             }
-            watchFaceComplication3 {
+            watchFaceComplication {
                 widthRatio = 0.25f
                 heightRatio = 0.25f
                 xPos = 0.5f
@@ -24,9 +24,11 @@ import com.turndapage.wear.watchface.watchfacedarko.service.AbstractKotlinWatchF
 
 import net.vrallev.android.cat.Cat;
 
+import java.util.List;
 import java.util.concurrent.Executors;
 
 import static android.app.Activity.RESULT_OK;
+import static com.turndapage.wear.watchface.watchfacedarko.service.ComplicationSlotsKt.FIRST_COMPLICATION_ID;
 
 public class ComplicationSelectionFragment extends Fragment implements View.OnClickListener {
     private ComplicationSelectionFragment complicationSelectionFragment;
@@ -63,9 +65,10 @@ public class ComplicationSelectionFragment extends Fragment implements View.OnCl
     public View onCreateView(LayoutInflater inflater, @Nullable ViewGroup container, Bundle savedInstanceState) {
         View view = inflater.inflate(R.layout.complication_selection, container, false);
 
-        complication1Id = 101;
-        complication2Id = 102;
-        complication3Id = 103;
+        // One button per complication the DSL allows, see MAX_STYLE_COMPLICATIONS.
+        complication1Id = FIRST_COMPLICATION_ID;
+        complication2Id = FIRST_COMPLICATION_ID + 1;
+        complication3Id = FIRST_COMPLICATION_ID + 2;
 
         swipeDismissFrameLayout = view.findViewById(R.id.swipe_dismiss);
         complicationSelectionFragment = this;
@@ -93,9 +96,9 @@ public class ComplicationSelectionFragment extends Fragment implements View.OnCl
             @Override
             public void run() {
                 float width = background.getMeasuredWidth();
-                updateComplicationPositions(complication1, complication1Icon, width, abstractKotlinWatchFace.getWatchFaceStyle().getWatchFaceComplication1());
-                updateComplicationPositions(complication2, complication2Icon, width, abstractKotlinWatchFace.getWatchFaceStyle().getWatchFaceComplication2());
-                updateComplicationPositions(complication3, complication3Icon, width, abstractKotlinWatchFace.getWatchFaceStyle().getWatchFaceComplication3());
+                updateComplicationPositions(complication1, complication1Icon, width, getComplication(0));
+                updateComplicationPositions(complication2, complication2Icon, width, getComplication(1));
+                updateComplicationPositions(complication3, complication3Icon, width, getComplication(2));
             }
         });
 
@@ -123,7 +126,20 @@ public class ComplicationSelectionFragment extends Fragment implements View.OnCl
         return view;
     }
 
-    private void updateComplicationPositions(ImageView imageView, ImageButton imageButton, float width, WatchFaceComplication watchFaceComplication) {
+    // Returns the complication at index, or null if the face has fewer complications.
+    @Nullable
+    private WatchFaceComplication getComplication(int index) {
+        List<WatchFaceComplication> complications =
+                abstractKotlinWatchFace.getWatchFaceStyle().getWatchFaceComplications();
+        return index < complications.size() ? complications.get(index) : null;
+    }
+
+    private void updateComplicationPositions(ImageView imageView, ImageButton imageButton, float width, @Nullable WatchFaceComplication watchFaceComplication) {
+        if (watchFaceComplication == null) {
+            imageView.setVisibility(View.GONE);
+            imageButton.setVisibility(View.GONE);
+            return;
+        }
         float complicationRadius = (imageView.getMeasuredWidth() / 2);
         float leftMargin1 = (watchFaceComplication.getXPos() * width) - complicationRadius;
         float topMargin1 = (watchFaceComplication.getYPos() * width) - complicationRadius;
@@ -166,16 +182,16 @@ public class ComplicationSelectionFragment extends Fragment implements View.OnCl
         int[] supportedTypes = new int[]{};
         switch (complicationLocation) {
             case COMPLICATION1:
-                mSelectedComplicationId = 101;
-                supportedTypes = abstractKotlinWatchFace.getWatchFaceStyle().getWatchFaceComplication1().getSupportedTypes();
+                mSelectedComplicationId = complication1Id;
+                supportedTypes = getComplication(0).getSupportedTypes();
                 break;
             case COMPLICATION2:
-                mSelectedComplicationId = 102;
-                supportedTypes = abstractKotlinWatchFace.getWatchFaceStyle().getWatchFaceComplication2().getSupportedTypes();
+                mSelectedComplicationId = complication2Id;
+                supportedTypes = getComplication(1).getSupportedTypes();
                 break;
             case COMPLICATION3:
-                mSelectedComplicationId = 103;
-                supportedTypes = abstractKotlinWatchFace.getWatchFaceStyle().getWatchFaceComplication3().getSupportedTypes();
+                mSelectedComplicationId = complication3Id;
+                supportedTypes = getComplication(2).getSupportedTypes();
                 break;
         }
 
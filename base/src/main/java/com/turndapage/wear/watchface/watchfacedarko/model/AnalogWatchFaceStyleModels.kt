@@ -22,6 +22,12 @@ import android.support.annotation.DrawableRes
  */
 const val EMPTY_IMAGE_RESOURCE = 0
 
+/**
+ * Update rates the second hand supports, in frames per second. 1 ticks once a second, anything
+ * higher sweeps.
+ */
+val SUPPORTED_SECOND_HAND_FPS = intArrayOf(1, 5, 15, 30)
+
 /**
  * Represents all data required to style an analog watch face.
  */
@@ -31,9 +37,7 @@ data class AnalogWatchFaceStyle(
     val watchFaceBackgroundImage: WatchFaceBackgroundImage,
     val watchFaceHourHand: WatchFaceHourHand,
     val watchFaceMinuteHand: WatchFaceMinuteHand,
-    val watchFaceComplication1: WatchFaceComplication,
-    val watchFaceComplication2: WatchFaceComplication,
-    val watchFaceComplication3: WatchFaceComplication,
+    val watchFaceComplications: List<WatchFaceComplication>,
     val watchFaceStyle: WatchFaceStyle)
 
 /**
@@ -44,6 +48,7 @@ data class AnalogWatchFaceStyle(
  *   0.0 to 1.0).
  * - xPos - the X position on the screen from 0.0 to 1.0
  * - yPos - the Y position on the screen from 0.0 to 1.0
+ * - defaultProviderType - the complication type requested from defaultProvider.
  */
 data class WatchFaceComplication(
         val widthRatio:Float,
@@ -52,6 +57,7 @@ data class WatchFaceComplication(
         val yPos:Float,
         val supportedTypes: IntArray,
         val defaultProvider:Class<*>?,
+        val defaultProviderType:Int,
         val titleTypeface:Int)
 
 /**
@@ -103,8 +109,15 @@ data class WatchFaceDimensions(
  *
  * Image is scaled to fit the device screen by width but will maintain its aspect ratio, and
  * centered to the top of the screen.
+ *
+ * Faces that are fully opaque can set [rgb565] to keep the background, the cached dial layers and
+ * composite frame, and the surface itself in 16-bit color (dithered), halving their memory and
+ * the data moved by every full screen blit.
  */
-data class WatchFaceBackgroundImage(@DrawableRes val backgroundImageResource:Int)
+data class WatchFaceBackgroundImage(
+        @DrawableRes val backgroundImageResource:Int,
+        val rgb565:Boolean
+)
 
 data class WatchFaceHourHand(
         @DrawableRes val drawable:Int,
@@ -115,10 +128,22 @@ data class WatchFaceMinuteHand(
         val offset: Float
 )
 
+/**
+ * Represents the layout of the dial:
+ * - topNumber/rightNumber/bottomNumber/leftNumber - whether to draw 12, 3, 6 and 9.
+ * - statusGravity - where the system draws status icons.
+ * - secondHandFps - how often the second hand moves in interactive mode, one of
+ *   [SUPPORTED_SECOND_HAND_FPS]. 1 ticks every second, higher rates sweep.
+ * - ambientLitPixelBudget - most of the screen (0-1) the low-bit ambient frame may light, with
+ *   complications shown or hidden; checked by LitPixelBudgetTest. Regular ambient frames show
+ *   the whole background in gray and aren't held to it.
+ */
 data class WatchFaceStyle(
         val topNumber:Boolean,
         val rightNumber:Boolean,
         val bottomNumber:Boolean,
         val leftNumber:Boolean,
-        val statusGravity:Int
+        val statusGravity:Int,
+        val secondHandFps:Int,
+        val ambientLitPixelBudget:Float
 )
\ No newline at end of file
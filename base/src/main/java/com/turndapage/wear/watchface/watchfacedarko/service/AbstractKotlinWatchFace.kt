@@ -16,12 +16,21 @@
 
 package com.turndapage.wear.watchface.watchfacedarko.service
 
+import android.app.AlarmManager
 import android.content.*
 import android.graphics.*
 import android.graphics.drawable.Drawable
+import android.graphics.drawable.Icon
+import android.os.BatteryManager
 import android.os.Bundle
 import android.os.Handler
 import android.os.Message
+import android.os.PowerManager
+import android.preference.PreferenceManager
+import android.os.SystemClock
+import android.support.annotation.VisibleForTesting
+import android.text.TextUtils
+import android.text.format.DateUtils
 import android.support.v4.content.res.ResourcesCompat
 import android.support.wearable.complications.ComplicationData
 import android.support.wearable.complications.rendering.ComplicationDrawable
@@ -29,31 +38,67 @@ import android.support.wearable.watchface.CanvasWatchFaceService
 import android.support.wearable.watchface.WatchFaceService
 import android.support.wearable.watchface.WatchFaceStyle
 import android.util.Log
-import android.util.SparseArray
 import android.view.SurfaceHolder
+import com.turndapage.wear.watchface.watchfacedarko.BuildConfig
 import com.turndapage.wear.watchface.watchfacedarko.R
 import com.turndapage.wear.watchface.watchfacedarko.SettingsUtil
 import com.turndapage.wear.watchface.watchfacedarko.TextRect
 import com.turndapage.wear.watchface.watchfacedarko.model.AnalogWatchFaceStyle
 import com.turndapage.wear.watchface.watchfacedarko.model.EMPTY_IMAGE_RESOURCE
+import com.turndapage.wear.watchface.watchfacedarko.model.WatchFaceComplication
 import org.w3c.dom.Text
 
 import java.lang.ref.WeakReference
-import java.util.Calendar
 import java.util.TimeZone
-import kotlin.math.roundToInt
 
-/**
- * Updates rate in milliseconds for interactive mode. We update once a second to advance the
- * second hand.
- */
-private const val INTERACTIVE_UPDATE_RATE_MS = 1000
+private const val TAG = "AbstractKotlinWatchFace"
 
 /**
  * Handler message id for updating the time periodically in interactive mode.
  */
 private const val MSG_UPDATE_TIME = 0
 
+/**
+ * Handler message id for drawing a frame whose invalidation was held back to merge it with others.
+ */
+private const val MSG_INVALIDATE = 1
+
+/**
+ * Handler message id for redrawing complications whose text changed, in interactive mode.
+ */
+private const val MSG_COMPLICATION_WAKEUP = 2
+
+/**
+ * Tag of the alarm that redraws complications whose text changed, in ambient mode, when the
+ * handler may be asleep.
+ */
+private const val ALARM_TAG_COMPLICATION_WAKEUP = "DarkoWatchFace:ComplicationWakeup"
+
+/**
+ * Minimum time between two ambient complication wake-ups. Each one wakes the watch, and ambient
+ * screens aren't meant to tick, so e.g. a seconds countdown is only redrawn this often.
+ */
+private const val MIN_AMBIENT_WAKEUP_INTERVAL_MS = 30 * 1000L
+
+/**
+ * Minimum time between two frames requested by engine events, so bursts of them are merged. Kept
+ * at half the 33 ms frame slot of the fastest second hand rate (30 fps), so holding a frame back
+ * never makes it miss the next sweep frame.
+ */
+private const val INVALIDATION_WINDOW_MS = 16L
+
+/**
+ * Complication texts whose strings are cached between frames.
+ */
+private const val TEXT_LONG_TEXT = 0
+private const val TEXT_TITLE = 1
+private const val TEXT_COUNT = 2
+
+/**
+ * Layers drawn into the per-minute composite frame, i.e. all but the second hand.
+ */
+private const val COMPOSITE_LAYERS = LAYER_SECOND_HAND.inv()
+
 /**
  * This is a helper class which renders an analog watch face based on a data object passed in
  * representing the style. The class implements all best practices for watch faces, so the
@@ -75,12 +120,6 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
 
     private lateinit var analogWatchFaceStyle: AnalogWatchFaceStyle
 
-    private val complicationId1: Int = 101
-    private val complicationId2: Int = 102
-    private val complicationId3: Int = 103
-
-    private val complicationIds: IntArray = intArrayOf(complicationId1, complicationId2, complicationId3)
-
     abstract fun getWatchFaceStyle():AnalogWatchFaceStyle
 
     override fun onCreateEngine(): Engine {
@@ -96,6 +135,8 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
             if (engine != null) {
                 when (msg.what) {
                     MSG_UPDATE_TIME -> engine.handleUpdateTimeMessage()
+                    MSG_INVALIDATE -> engine.handleInvalidateMessage()
+                    MSG_COMPLICATION_WAKEUP -> engine.handleComplicationWakeup()
                 }
             }
         }
@@ -103,75 +144,172 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
 
     inner class Engine : CanvasWatchFaceService.Engine() {
 
-        private lateinit var calendar: Calendar
+        /* Local time of the frame being drawn. */
+        private val time = TimeDecomposer(TimeZone.getDefault())
+        private var timeZoneId: String = TimeZone.getDefault().id
 
         private var registeredTimeZoneReceiver = false
         private var muteMode: Boolean = false
-        private var centerX: Float = 0F
-        private var centerY: Float = 0F
+        private var surfaceWidth: Int = 0
+        private var surfaceHeight: Int = 0
 
-        private var secondHandLengthRatio: Float = 0F
-        private var minuteHandLengthRatio: Float = 0F
-        private var hourHandLengthRatio: Float = 0F
+        /* Tick, numeral and hand positions for the current surface size. */
+        private lateinit var dialGeometry: DialGeometry
 
-        private var hourHandWidth: Float = 0F
-        private var hourHandHeight: Float = 0F
-        private var hourOffset: Float = 0F
+        /* Hands and center circle rasterized once per render mode, shadows included. */
+        private var hourHandSprite: HandSprite? = null
+        private var minuteHandSprite: HandSprite? = null
+        private var secondHandSprite: HandSprite? = null
+        private var centerCircleSprite: HandSprite? = null
 
-        private var minuteHandWidth: Float = 0F
-        private var minuteHandHeight: Float = 0F
-        private var minuteOffset: Float = 0F
+        /* What to draw for each render mode, compiled on surface change. */
+        private val renderPlans = arrayOfNulls<RenderPlan>(RENDER_MODE_COUNT)
 
-        private var hourHandDrawable: Drawable? = null
-        private var minuteHandDrawable: Drawable? = null
+        /* Rotation in degrees of each hand op for the frame being drawn, indexed by op. */
+        private val handRotations = FloatArray(OP_COUNT)
 
-        private lateinit var hourPaint: Paint
-        private lateinit var minutePaint: Paint
-        private lateinit var secondPaint: Paint
-        private lateinit var tickAndCirclePaint: Paint
-        private lateinit var circlePaint: Paint
+        /* Paints for each mode, indexed by palette; rebuilt only when the quality tier changes. */
+        private val paintPalettes = arrayOfNulls<PaintPalette>(PALETTE_COUNT)
 
         private lateinit var datePaint: Paint
         private lateinit var textPaint: Paint
 
-        private lateinit var backgroundPaint: Paint
-        // Best practice is to always use black for watch face in ambient mode (saves battery
-        // and prevents burn-in.
-        private val backgroundAmbientPaint:Paint = Paint().apply { color = Color.BLACK }
+        /* Reused text layouts for the long text complication, one per palette for its paint. */
+        private val longTextRects = arrayOfNulls<TextRect>(PALETTE_COUNT)
+        private lateinit var titleTextRect: TextRect
+
+        /*
+         * Strings of the last complication texts, kept while the text doesn't change so a frame
+         * doesn't convert it again. Indexed by TEXT_.
+         */
+        private val texts = arrayOfNulls<String>(TEXT_COUNT)
 
         private var backgroundImageEnabled:Boolean = false
         private lateinit var backgroundBitmap: Bitmap
-        private lateinit var grayBackgroundBitmap: Bitmap
+        /* Where the background image is drawn, scaled to the surface width. */
+        private val backgroundBounds = Rect()
+        private val backgroundImagePaint = Paint(Paint.FILTER_BITMAP_FLAG)
+        /* Config of the opaque cached layers: the dial layers and the composite frame. */
+        private var opaqueLayerConfig = Bitmap.Config.ARGB_8888
+        private val grayscalePaint = Paint(Paint.FILTER_BITMAP_FLAG).apply {
+            colorFilter = ColorMatrixColorFilter(ColorMatrix().apply { setSaturation(0f) })
+        }
+        /* Draws the dithered low-bit background: white, 1:1, no anti-aliasing or filtering. */
+        private val ditheredBackgroundPaint = Paint().apply { color = Color.WHITE }
 
         private var ambient: Boolean = false
         private var lowBitAmbient: Boolean = false
         private var burnInProtection: Boolean = false
 
+        /* Background, ticks and numerals composed once per render mode. */
+        private val dialLayerCache = DialLayerCache()
+
+        /* Composes stale dial layers and hand sprites off the main thread. */
+        private lateinit var layerRenderThread: LayerRenderThread
+
+        /* Splits dial layer composition across the watch's cores. */
+        private lateinit var tiledRasterizer: TiledRasterizer
+
+        /* When the surface last changed, to log how long the first frame after it took. */
+        private var surfaceChangedNanos: Long = 0
+
+        /* Everything but the second hand, recomposed once a minute in interactive mode. */
+        private val compositeFrameCache = CompositeFrameCache()
+        private lateinit var complicationLayerCache: ComplicationLayerCache
+        /* Scratch bounds of the complication layer being redrawn. */
+        private val complicationLayerBounds = Rect()
+
+        /* Slot whose tap highlight is showing, redrawn once the highlight ends. */
+        private var tappedSlot: Int = -1
+        private val tapHighlightEnd = Runnable {
+            complicationLayerCache.invalidate(tappedSlot)
+            onInput(INVALIDATE_REASON_COMPLICATION_DATA, tappedSlot)
+        }
+
+        /*
+         * Redraws the layer of a slot whose drawable changed by itself, e.g. once the image it
+         * loads in the background is ready. Drawables only keep a weak reference to it.
+         */
+        private val complicationDrawableCallback = object : Drawable.Callback {
+            override fun invalidateDrawable(who: Drawable) {
+                val slot = complicationDrawables.indexOf(who)
+                if (slot >= 0) {
+                    complicationLayerCache.invalidate(slot)
+                    onInput(INVALIDATE_REASON_COMPLICATION_DATA, slot)
+                }
+            }
+
+            override fun scheduleDrawable(who: Drawable, what: Runnable, `when`: Long) {
+                updateTimeHandler.postAtTime(what, who, `when`)
+            }
+
+            override fun unscheduleDrawable(who: Drawable, what: Runnable) {
+                updateTimeHandler.removeCallbacks(what, who)
+            }
+        }
+
         /* Handler to update the time once a second in interactive mode. */
         private val updateTimeHandler = EngineHandler(this)
 
-        private var complicationWidthRatio1: Float = 0F
-        private var complicationHeightRatio1: Float = 0F
-        private var complicationXPos1: Float = 0F
-        private var complicationYPos1: Float = 0F
+        /* Decides when the next interactive frame is due, based on the second hand frame rate. */
+        private lateinit var frameScheduler: FrameScheduler
+
+        /* Trades anti-aliasing, shadows and frame rate for battery and frame time. */
+        private val qualityGovernor = QualityGovernor()
+
+        /* Merges invalidations from bursts of engine events into one frame. */
+        private val invalidationCoalescer = InvalidationCoalescer(INVALIDATION_WINDOW_MS)
 
-        private var complicationWidthRatio2: Float = 0F
-        private var complicationHeightRatio2: Float = 0F
-        private var complicationXPos2: Float = 0F
-        private var complicationYPos2: Float = 0F
+        /* Which layers each input affects, so events only redraw what changed. */
+        private lateinit var layerDependencies: LayerDependencies
 
-        private var complicationWidthRatio3: Float = 0F
-        private var complicationHeightRatio3: Float = 0F
-        private var complicationXPos3: Float = 0F
-        private var complicationYPos3: Float = 0F
+        private var hideComplicationsInAmbient: Boolean = true
 
-        private lateinit var complicationDataSparseArray: SparseArray<ComplicationData?>
-        private lateinit var complicationDrawableSparseArray: SparseArray<ComplicationDrawable?>
+        /* Complications with any area on screen, and their data and drawable by slot. */
+        private lateinit var complicationSlots: ComplicationSlots
+        private lateinit var complicationData: Array<ComplicationData?>
+        private lateinit var complicationDrawables: Array<ComplicationDrawable>
+
+        /* Cache ids of the ICON and SMALL_IMAGE images in complicationData, by slot. */
+        private lateinit var complicationIconIds: Array<IconId?>
+
+        /*
+         * Whether each slot's data was active when it was handed to the drawable. Only an active
+         * ICON or SMALL_IMAGE is swapped for a cached copy, which has no active time range.
+         */
+        private lateinit var complicationDataActive: BooleanArray
 
         private val timeZoneReceiver = object : BroadcastReceiver() {
             override fun onReceive(context: Context, intent: Intent) {
-                calendar.timeZone = TimeZone.getDefault()
-                invalidate()
+                updateTimeZone()
+                onInput(INVALIDATE_REASON_TIME_ZONE)
+            }
+        }
+
+        private val settingsListener =
+                SharedPreferences.OnSharedPreferenceChangeListener { _, _ ->
+                    hideComplicationsInAmbient = SettingsUtil.GetHideComplications(applicationContext)
+                    onInput(INVALIDATE_REASON_SETTINGS)
+                    scheduleComplicationWakeup()
+                }
+
+        /*
+         * Ambient complication wake-up alarm. Each engine has its own listener, so engines never
+         * cancel or receive each other's alarms.
+         */
+        private val complicationWakeupListener =
+                AlarmManager.OnAlarmListener { handleComplicationWakeup() }
+
+        private lateinit var alarmManager: AlarmManager
+
+        /* Complication wake-ups, and how many of them redrew something, since onCreate. */
+        private var wakeupCount: Long = 0
+        private var wakeupRedrawCount: Long = 0
+        private var createdRealtimeMs: Long = 0
+
+        private val batteryReceiver = object : BroadcastReceiver() {
+            override fun onReceive(context: Context, intent: Intent) {
+                updateBatteryState(intent)
             }
         }
 
@@ -186,12 +324,29 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
                             .setStatusBarGravity(analogWatchFaceStyle.watchFaceStyle.statusGravity)
                         .build()
             )
+            if (analogWatchFaceStyle.watchFaceBackgroundImage.rgb565) {
+                // Nothing on the surface is translucent, so it needs no alpha either.
+                holder.setFormat(PixelFormat.RGB_565)
+            }
+
+            layerRenderThread = LayerRenderThread()
+            tiledRasterizer = TiledRasterizer(
+                    Math.min(Runtime.getRuntime().availableProcessors(), MAX_RASTER_THREADS))
+            frameScheduler = FrameScheduler(analogWatchFaceStyle.watchFaceStyle.secondHandFps)
+            complicationSlots = ComplicationSlots(analogWatchFaceStyle)
+            complicationLayerCache = ComplicationLayerCache(complicationSlots.count)
+            layerDependencies = buildLayerDependencies(complicationSlots)
+
+            hideComplicationsInAmbient = SettingsUtil.GetHideComplications(applicationContext)
+            PreferenceManager.getDefaultSharedPreferences(applicationContext)
+                    .registerOnSharedPreferenceChangeListener(settingsListener)
 
-            calendar = Calendar.getInstance()
+            createdRealtimeMs = SystemClock.elapsedRealtime()
+            alarmManager = getSystemService(Context.ALARM_SERVICE) as AlarmManager
 
             initializeBackground()
-            initializeWatchFace()
             initializeComplications()
+            buildPaintPalettes()
         }
 
         private fun initializeBackground() {
@@ -200,14 +355,41 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
                     analogWatchFaceStyle.watchFaceBackgroundImage.backgroundImageResource !=
                     EMPTY_IMAGE_RESOURCE
 
+            if (analogWatchFaceStyle.watchFaceBackgroundImage.rgb565) {
+                opaqueLayerConfig = Bitmap.Config.RGB_565
+                // Dither wherever colors are computed while drawing into 16-bit layers.
+                backgroundImagePaint.isDither = true
+                grayscalePaint.isDither = true
+            }
+
             if (backgroundImageEnabled) {
                 backgroundBitmap = BitmapFactory.decodeResource(
                         resources,
                         analogWatchFaceStyle.watchFaceBackgroundImage.backgroundImageResource
                 )
+                if (opaqueLayerConfig == Bitmap.Config.RGB_565) {
+                    backgroundBitmap = toRgb565(backgroundBitmap)
+                }
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "Background ${backgroundBitmap.width}x" +
+                            "${backgroundBitmap.height} ${backgroundBitmap.config}: " +
+                            "${backgroundBitmap.byteCount} bytes")
+                }
             }
         }
 
+        /**
+         * Returns [bitmap] converted to 16-bit color, dithered so gradients don't band, and
+         * recycles it. Decoding can't dither since Android N, so this draws it instead.
+         */
+        private fun toRgb565(bitmap: Bitmap): Bitmap {
+            val converted = Bitmap.createBitmap(bitmap.width, bitmap.height,
+                    Bitmap.Config.RGB_565)
+            Canvas(converted).drawBitmap(bitmap, 0f, 0f, Paint(Paint.DITHER_FLAG))
+            bitmap.recycle()
+            return converted
+        }
+
         private fun initializeComplications() {
             datePaint = Paint()
             datePaint.color = analogWatchFaceStyle.watchFaceColors.highlight
@@ -218,184 +400,95 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
 
             textPaint = Paint()
             textPaint.color = Color.WHITE
-            if(analogWatchFaceStyle.watchFaceComplication2.titleTypeface != EMPTY_IMAGE_RESOURCE)
-                textPaint.typeface = ResourcesCompat.getFont(applicationContext,
-                        analogWatchFaceStyle.watchFaceComplication2.titleTypeface)
+            // The title of the Darko long text, in the first complication.
+            if (complicationSlots.count > 0 && complicationSlots.ids[0] == FIRST_COMPLICATION_ID)
+                textPaint.typeface = getTitleTypeface(complicationSlots.complications[0])
             textPaint.isAntiAlias = true
             textPaint.textSize = 18f
             textPaint.textAlign = Paint.Align.CENTER
-
-            complicationWidthRatio1 = analogWatchFaceStyle.watchFaceComplication1.widthRatio
-            complicationHeightRatio1 = analogWatchFaceStyle.watchFaceComplication1.heightRatio
-            complicationXPos1 = analogWatchFaceStyle.watchFaceComplication1.xPos
-            complicationYPos1 = analogWatchFaceStyle.watchFaceComplication1.yPos
-
-            complicationWidthRatio2 = analogWatchFaceStyle.watchFaceComplication2.widthRatio
-            complicationHeightRatio2 = analogWatchFaceStyle.watchFaceComplication2.heightRatio
-            complicationXPos2 = analogWatchFaceStyle.watchFaceComplication2.xPos
-            complicationYPos2 = analogWatchFaceStyle.watchFaceComplication2.yPos
-
-            complicationWidthRatio3 = analogWatchFaceStyle.watchFaceComplication3.widthRatio
-            complicationHeightRatio3 = analogWatchFaceStyle.watchFaceComplication3.heightRatio
-            complicationXPos3 = analogWatchFaceStyle.watchFaceComplication3.xPos
-            complicationYPos3 = analogWatchFaceStyle.watchFaceComplication3.yPos
-
-            complicationDataSparseArray = SparseArray(complicationIds.size)
-
-            val complicationDrawable1 = ComplicationDrawable(applicationContext)
-            val complicationDrawable2 = ComplicationDrawable(applicationContext)
-            val complicationDrawable3 = ComplicationDrawable(applicationContext)
-
-            complicationDrawable1.setBackgroundColorActive(analogWatchFaceStyle.watchFaceColors.complication)
-            complicationDrawable1.setBorderColorActive(Color.TRANSPARENT)
-            complicationDrawable1.setHighlightColorActive(analogWatchFaceStyle.watchFaceColors.highlight)
-            complicationDrawable1.setTextColorActive(analogWatchFaceStyle.watchFaceColors.main)
-            complicationDrawable1.setTextColorAmbient(Color.WHITE)
-            complicationDrawable1.setTitleTypefaceActive(textPaint.typeface)
-            complicationDrawable1.setTitleTypefaceAmbient(textPaint.typeface)
-            complicationDrawable1.setIconColorAmbient(Color.WHITE)
-            complicationDrawable1.setImageColorFilterAmbient(getBlackAndWhiteColorFilter())
-
-            complicationDrawable2.setBackgroundColorActive(analogWatchFaceStyle.watchFaceColors.complication)
-            complicationDrawable2.setBorderColorActive(Color.TRANSPARENT)
-            complicationDrawable2.setHighlightColorActive(analogWatchFaceStyle.watchFaceColors.highlight)
-            complicationDrawable2.setTextColorActive(analogWatchFaceStyle.watchFaceColors.main)
-            complicationDrawable2.setTextColorAmbient(Color.WHITE)
-            complicationDrawable2.setTitleTypefaceActive(textPaint.typeface)
-            complicationDrawable2.setTitleTypefaceAmbient(textPaint.typeface)
-            complicationDrawable2.setIconColorAmbient(Color.WHITE)
-            complicationDrawable2.setImageColorFilterAmbient(getBlackAndWhiteColorFilter())
-
-            complicationDrawable3.setBackgroundColorActive(analogWatchFaceStyle.watchFaceColors.complication)
-            complicationDrawable3.setBorderColorActive(Color.TRANSPARENT)
-            complicationDrawable3.setHighlightColorActive(analogWatchFaceStyle.watchFaceColors.highlight)
-            complicationDrawable3.setTextColorActive(analogWatchFaceStyle.watchFaceColors.main)
-            complicationDrawable3.setTextColorAmbient(Color.WHITE)
-            complicationDrawable3.setTitleTypefaceActive(textPaint.typeface)
-            complicationDrawable3.setTitleTypefaceAmbient(textPaint.typeface)
-            complicationDrawable3.setIconColorAmbient(Color.WHITE)
-            complicationDrawable3.setImageColorFilterAmbient(getBlackAndWhiteColorFilter())
-
-            complicationDrawableSparseArray = SparseArray(complicationIds.size)
-
-            complicationDrawableSparseArray.put(complicationId1, complicationDrawable1)
-            complicationDrawableSparseArray.put(complicationId2, complicationDrawable2)
-            complicationDrawableSparseArray.put(complicationId3, complicationDrawable3)
-
-            setActiveComplications(complicationId1, complicationId2, complicationId3)
-
-
-            if(analogWatchFaceStyle.watchFaceComplication1.defaultProvider != null) {
-                val defaultProviderService = ComponentName(applicationContext, analogWatchFaceStyle.watchFaceComplication1.defaultProvider!!)
-                if(analogWatchFaceStyle.watchFaceComplication1.supportedTypes.contains(ComplicationData.TYPE_LONG_TEXT)) {
-                    setDefaultComplicationProvider(complicationId1, defaultProviderService, ComplicationData.TYPE_LONG_TEXT)
-                } else {
-                    setDefaultComplicationProvider(complicationId1, defaultProviderService, ComplicationData.TYPE_SHORT_TEXT)
+            titleTextRect = TextRect(textPaint)
+
+            complicationData = arrayOfNulls(complicationSlots.count)
+            complicationIconIds = arrayOfNulls(complicationSlots.count)
+            complicationDataActive = BooleanArray(complicationSlots.count)
+            complicationDrawables = Array(complicationSlots.count) { slot ->
+                val titleTypeface = getTitleTypeface(complicationSlots.complications[slot])
+                ComplicationDrawable(applicationContext).apply {
+                    setBackgroundColorActive(analogWatchFaceStyle.watchFaceColors.complication)
+                    setBorderColorActive(Color.TRANSPARENT)
+                    setHighlightColorActive(analogWatchFaceStyle.watchFaceColors.highlight)
+                    setTextColorActive(analogWatchFaceStyle.watchFaceColors.main)
+                    setTextColorAmbient(Color.WHITE)
+                    setTitleTypefaceActive(titleTypeface)
+                    setTitleTypefaceAmbient(titleTypeface)
+                    setIconColorAmbient(Color.WHITE)
+                    setImageColorFilterAmbient(ComplicationImageCache.ambientColorFilter)
+                    callback = complicationDrawableCallback
                 }
             }
-            if(analogWatchFaceStyle.watchFaceComplication2.defaultProvider != null) {
-                val defaultProviderService = ComponentName(applicationContext, analogWatchFaceStyle.watchFaceComplication2.defaultProvider!!)
-                setDefaultComplicationProvider(complicationId2, defaultProviderService, ComplicationData.TYPE_LONG_TEXT)
-            }
-            if(analogWatchFaceStyle.watchFaceComplication3.defaultProvider != null) {
-                val defaultProviderService = ComponentName(applicationContext, analogWatchFaceStyle.watchFaceComplication3.defaultProvider!!)
-                if(analogWatchFaceStyle.watchFaceComplication3.supportedTypes.contains(ComplicationData.TYPE_LONG_TEXT)) {
-                    setDefaultComplicationProvider(complicationId3, defaultProviderService, ComplicationData.TYPE_LONG_TEXT)
-                } else {
-                    setDefaultComplicationProvider(complicationId3, defaultProviderService, ComplicationData.TYPE_SHORT_TEXT)
+
+            setActiveComplications(*complicationSlots.ids)
+
+            for (slot in 0 until complicationSlots.count) {
+                val complication = complicationSlots.complications[slot]
+                if (complication.defaultProvider != null) {
+                    setDefaultComplicationProvider(complicationSlots.ids[slot],
+                            ComponentName(applicationContext, complication.defaultProvider),
+                            complication.defaultProviderType)
                 }
             }
         }
 
-        private fun getBlackAndWhiteColorFilter(): ColorFilter {
-            val colorMatrix: FloatArray = floatArrayOf(
-                    0.33f, 0.33f, 0.33f, 0f, 50f,
-                    0.33f, 0.33f, 0.33f, 0f, 50f,
-                    0.33f, 0.33f, 0.33f, 0f, 50f,
-                    0f, 0f, 0f, 1f, 0f
-            )
-            return  ColorMatrixColorFilter(colorMatrix)
+        private fun getTitleTypeface(complication: WatchFaceComplication): Typeface? {
+            if (complication.titleTypeface == EMPTY_IMAGE_RESOURCE) {
+                return null
+            }
+            return ResourcesCompat.getFont(applicationContext, complication.titleTypeface)
         }
 
         override fun onUnreadCountChanged(count: Int) {
-            invalidate()
-        }
-
-        private fun initializeWatchFace() {
-
-            hourPaint = Paint().apply {
-                color = analogWatchFaceStyle.watchFaceColors.main
-                strokeWidth = analogWatchFaceStyle.watchFaceDimensions.hourHandWidth
-                isAntiAlias = true
-                strokeCap = Paint.Cap.ROUND
-                style = Paint.Style.FILL
-                setShadowLayer(
-                        analogWatchFaceStyle.watchFaceDimensions.shadowRadius,
-                        0f,
-                        0f,
-                        analogWatchFaceStyle.watchFaceColors.shadow
-                )
-            }
-
-            minutePaint = Paint().apply {
-                color = analogWatchFaceStyle.watchFaceColors.main
-                strokeWidth = analogWatchFaceStyle.watchFaceDimensions.minuteHandWidth
-                isAntiAlias = true
-                strokeCap = Paint.Cap.ROUND
-                setShadowLayer(
-                        analogWatchFaceStyle.watchFaceDimensions.shadowRadius,
-                        0f,
-                        0f,
-                        analogWatchFaceStyle.watchFaceColors.shadow
-                )
-            }
-
-            secondPaint = Paint().apply {
-                color = analogWatchFaceStyle.watchFaceColors.highlight
-                strokeWidth = analogWatchFaceStyle.watchFaceDimensions.secondHandWidth
-                isAntiAlias = true
-                strokeCap = Paint.Cap.ROUND
-                setShadowLayer(
-                        analogWatchFaceStyle.watchFaceDimensions.shadowRadius,
-                        0f,
-                        0f,
-                        analogWatchFaceStyle.watchFaceColors.shadow
-                )
-            }
+            onInput(INVALIDATE_REASON_UNREAD_COUNT)
+        }
 
-            tickAndCirclePaint = Paint().apply {
-                color = analogWatchFaceStyle.watchFaceColors.tickPaint
-                strokeWidth = analogWatchFaceStyle.watchFaceDimensions.secondHandWidth
-                isAntiAlias = true
-                style = Paint.Style.STROKE
-                setShadowLayer(
-                        analogWatchFaceStyle.watchFaceDimensions.shadowRadius,
-                        0f,
-                        0f,
-                        analogWatchFaceStyle.watchFaceColors.shadow
-                )
+        /**
+         * Builds the palette of every mode at the current quality tier.
+         */
+        private fun buildPaintPalettes() {
+            for (palette in 0 until PALETTE_COUNT) {
+                paintPalettes[palette] = buildPaintPalette(palette, analogWatchFaceStyle, datePaint,
+                        qualityGovernor.antiAliasEnabled, qualityGovernor.shadowsEnabled)
+                longTextRects[palette] = TextRect(paintPalettes[palette]!!.numeralPaint,
+                        paintPalettes[palette]!!.numeralGlyphs)
             }
+        }
 
-            circlePaint = Paint().apply {
-                color = analogWatchFaceStyle.watchFaceColors.main
-                strokeWidth = analogWatchFaceStyle.watchFaceDimensions.secondHandWidth
-                isAntiAlias = true
-                style = Paint.Style.FILL
-                setShadowLayer(
-                        analogWatchFaceStyle.watchFaceDimensions.shadowRadius,
-                        0f,
-                        0f,
-                        analogWatchFaceStyle.watchFaceColors.shadow
-                )
-            }
+        /**
+         * Returns the palette for [renderMode] in the current mute state.
+         */
+        @VisibleForTesting
+        internal fun getPalette(renderMode: Int): PaintPalette {
+            return paintPalettes[getPaletteIndex(renderMode)]!!
+        }
 
-            backgroundPaint = Paint().apply {
-                color = analogWatchFaceStyle.watchFaceColors.background
-            }
+        private fun getPaletteIndex(renderMode: Int): Int {
+            return if (renderMode == RENDER_MODE_INTERACTIVE && muteMode)
+                PALETTE_MUTE else renderMode
         }
 
         override fun onDestroy() {
             updateTimeHandler.removeMessages(MSG_UPDATE_TIME)
+            updateTimeHandler.removeMessages(MSG_INVALIDATE)
+            updateTimeHandler.removeCallbacks(tapHighlightEnd)
+            updateTimeHandler.removeMessages(MSG_COMPLICATION_WAKEUP)
+            alarmManager.cancel(complicationWakeupListener)
+            PreferenceManager.getDefaultSharedPreferences(applicationContext)
+                    .unregisterOnSharedPreferenceChangeListener(settingsListener)
+            layerRenderThread.quit()
+            tiledRasterizer.shutdown()
+            compositeFrameCache.release()
+            complicationLayerCache.release()
+            dialLayerCache.release()
+            releaseHandSprites()
             super.onDestroy()
         }
 
@@ -407,42 +500,207 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
             burnInProtection = properties.getBoolean(
                     WatchFaceService.PROPERTY_BURN_IN_PROTECTION, false
             )
+
+            // The ambient dial depends on which of these the device supports.
+            dialLayerCache.invalidate()
         }
 
         override fun onComplicationDataUpdate(watchFaceComplicationId: Int, data: ComplicationData?) {
-            complicationDataSparseArray.put(watchFaceComplicationId, data)
+            val slot = complicationSlots.indexOfId(watchFaceComplicationId)
+            if (slot < 0 || !complicationLayerCache.setData(slot, data)) {
+                // Providers resend unchanged data; what is drawn is already up to date.
+                return
+            }
+            complicationData[slot] = data
+            // Marshals the image once per update rather than on every lookup.
+            val image = getCachableImage(data)
+            complicationIconIds[slot] = if (image == null) null
+                    else ComplicationImageCache.identify(image)
+            updateComplicationDrawableData(slot, System.currentTimeMillis())
+
+            // At low quality the new data waits for the next minute's frame instead.
+            if (qualityGovernor.liveComplicationsEnabled) {
+                onInput(INVALIDATE_REASON_COMPLICATION_DATA, slot)
+            }
+            scheduleComplicationWakeup()
+        }
 
-            val complicationDrawable: ComplicationDrawable? =
-                    complicationDrawableSparseArray.get(watchFaceComplicationId)
-            complicationDrawable?.setComplicationData(data)
+        /**
+         * Hands the data of [slot] to its drawable, with ICON and SMALL_IMAGE images swapped for
+         * bitmaps from [ComplicationImageCache] at the slot's size (pre-filtered in ambient) while
+         * the data is active at [timeMs], so the drawable neither decodes nor filters them itself.
+         * Whatever else it shows in ambient, e.g. an image that couldn't be cached, it filters
+         * like the cache does.
+         */
+        private fun updateComplicationDrawableData(slot: Int, timeMs: Long) {
+            val data = complicationData[slot]
+            val drawable = complicationDrawables[slot]
+            val active = data != null && data.isActive(timeMs)
+            val cachedData = if (data != null && active) getCachedImageData(slot, data) else null
+            drawable.setComplicationData(cachedData ?: data)
+            complicationDataActive[slot] = active
+
+            val preFiltered = cachedData != null &&
+                    cachedData.type == ComplicationData.TYPE_SMALL_IMAGE &&
+                    cachedData.burnInProtectionSmallImage == null
+            drawable.setImageColorFilterAmbient(
+                    if (preFiltered) null else ComplicationImageCache.ambientColorFilter)
+        }
 
-            invalidate()
+        /**
+         * Returns the image of ICON or SMALL_IMAGE [data] that [ComplicationImageCache] can
+         * hold, or null for other types.
+         */
+        private fun getCachableImage(data: ComplicationData?): Icon? {
+            if (data == null) {
+                return null
+            }
+            return when (data.type) {
+                ComplicationData.TYPE_ICON -> data.icon
+                ComplicationData.TYPE_SMALL_IMAGE -> data.smallImage
+                else -> null
+            }
+        }
+
+        /**
+         * Returns a copy of ICON or SMALL_IMAGE [data] showing the cached image, or null if [data]
+         * is another type, the slot has no size yet or the image can't be cached. The copy has no
+         * active time range, so it is only used while [data] is active.
+         */
+        private fun getCachedImageData(slot: Int, data: ComplicationData): ComplicationData? {
+            val bounds = complicationDrawables[slot].bounds
+            val iconId = complicationIconIds[slot]
+            if (bounds.isEmpty || iconId == null) {
+                return null
+            }
+            val builder = when (data.type) {
+                ComplicationData.TYPE_ICON -> {
+                    // Icons are tinted rather than filtered in ambient, so one image does.
+                    val image = ComplicationImageCache.get(applicationContext,
+                            data.icon ?: return null, iconId, bounds.width(), bounds.height(),
+                            false) ?: return null
+                    ComplicationData.Builder(ComplicationData.TYPE_ICON).setIcon(image.icon)
+                }
+                ComplicationData.TYPE_SMALL_IMAGE -> {
+                    val image = ComplicationImageCache.get(applicationContext,
+                            data.smallImage ?: return null, iconId, bounds.width(),
+                            bounds.height(), ambient) ?: return null
+                    ComplicationData.Builder(ComplicationData.TYPE_SMALL_IMAGE)
+                            .setSmallImage(image.icon)
+                            .setImageStyle(data.imageStyle)
+                }
+                else -> return null
+            }
+            data.burnInProtectionIcon?.let { builder.setBurnInProtectionIcon(it) }
+            data.burnInProtectionSmallImage?.let { builder.setBurnInProtectionSmallImage(it) }
+            data.contentDescription?.let { builder.setContentDescription(it) }
+            data.tapAction?.let { builder.setTapAction(it) }
+            return builder.build()
         }
 
         override fun onTapCommand(tapType: Int, x: Int, y: Int, eventTime: Long) {
             if(WatchFaceService.TAP_TYPE_TAP == tapType) {
-                for(i in 0..(complicationIds.size - 1)) {
-                    val complicationId = complicationIds[i]
-                    val complicationDrawable: ComplicationDrawable? = complicationDrawableSparseArray.get(complicationId)
-                    val successfulTap: Boolean? = complicationDrawable?.onTap(x, y)
-                    if(successfulTap!!) {
+                // Only the slots under the tap, from the hit grid.
+                var hits = complicationSlots.hitTest(x, y)
+                while (hits != 0) {
+                    val slot = Integer.numberOfTrailingZeros(hits)
+                    hits = hits and (1 shl slot).inv()
+                    if (complicationDrawables[slot].onTap(x, y)) {
+                        showTapHighlight(slot, complicationDrawables[slot].highlightDuration)
                         return
                     }
                 }
             }
         }
 
+        /**
+         * Redraws the cached layer of [slot] with the tap highlight the drawable just turned on,
+         * and again once it is turned off after [durationMs].
+         */
+        private fun showTapHighlight(slot: Int, durationMs: Long) {
+            updateTimeHandler.removeCallbacks(tapHighlightEnd)
+            if (tappedSlot >= 0 && tappedSlot != slot) {
+                tapHighlightEnd.run()
+            }
+            tappedSlot = slot
+            complicationLayerCache.invalidate(slot)
+            onInput(INVALIDATE_REASON_COMPLICATION_DATA, slot)
+            updateTimeHandler.postDelayed(tapHighlightEnd, durationMs)
+        }
+
         override fun onTimeTick() {
             super.onTimeTick()
-            invalidate()
+            onInput(INVALIDATE_REASON_TIME_TICK)
+            // Text changes more than a wake-up horizon away are picked up one tick at a time.
+            scheduleComplicationWakeup()
+        }
+
+        /**
+         * Schedules a wake-up for the first instant the text of a drawn complication changes,
+         * e.g. a countdown or relative time, replacing any pending one. Ambient wake-ups use an
+         * exact alarm, since the handler doesn't run while the watch sleeps between time ticks,
+         * and are at least [MIN_AMBIENT_WAKEUP_INTERVAL_MS] apart.
+         */
+        private fun scheduleComplicationWakeup() {
+            updateTimeHandler.removeMessages(MSG_COMPLICATION_WAKEUP)
+            alarmManager.cancel(complicationWakeupListener)
+            if (!isVisible || (ambient && hideComplicationsInAmbient)) {
+                return
+            }
+
+            val timeMs = System.currentTimeMillis()
+            var wakeupMs = Long.MAX_VALUE
+            for (slot in 0 until complicationSlots.count) {
+                wakeupMs = Math.min(wakeupMs,
+                        complicationLayerCache.getNextChangeTimeMs(slot, timeMs))
+            }
+            if (wakeupMs == Long.MAX_VALUE) {
+                return
+            }
+            if (ambient) {
+                alarmManager.setExact(AlarmManager.RTC_WAKEUP,
+                        Math.max(wakeupMs, timeMs + MIN_AMBIENT_WAKEUP_INTERVAL_MS),
+                        ALARM_TAG_COMPLICATION_WAKEUP, complicationWakeupListener,
+                        updateTimeHandler)
+            } else {
+                updateTimeHandler.sendEmptyMessageDelayed(MSG_COMPLICATION_WAKEUP,
+                        wakeupMs - timeMs)
+            }
+        }
+
+        /**
+         * Redraws the complications whose text now reads differently from what is shown, and
+         * schedules the next wake-up. Slots whose text didn't change are not redrawn.
+         */
+        fun handleComplicationWakeup() {
+            wakeupCount++
+            val timeMs = System.currentTimeMillis()
+            var redrawn = false
+            for (slot in 0 until complicationSlots.count) {
+                if (complicationLayerCache.isTextChanged(slot, timeMs)) {
+                    onInput(INVALIDATE_REASON_COMPLICATION_TEXT, slot)
+                    redrawn = true
+                }
+            }
+            if (redrawn) {
+                wakeupRedrawCount++
+            }
+            scheduleComplicationWakeup()
         }
 
         override fun onAmbientModeChanged(inAmbientMode: Boolean) {
             super.onAmbientModeChanged(inAmbientMode)
             ambient = inAmbientMode
 
-            updateWatchHandStyle()
             updateComplicationStyle()
+            for (slot in 0 until complicationSlots.count) {
+                // Small images are swapped for their pre-filtered ambient variant and back.
+                if (complicationData[slot]?.type == ComplicationData.TYPE_SMALL_IMAGE) {
+                    updateComplicationDrawableData(slot, System.currentTimeMillis())
+                }
+            }
+            onInput(INVALIDATE_REASON_AMBIENT)
+            scheduleComplicationWakeup()
 
             // Check and trigger whether or not timer should be running (only
             // in active mode).
@@ -450,77 +708,17 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
         }
 
         private fun updateComplicationStyle() {
-            for(i in 0..(complicationIds.size - 1)) {
-                val complicationDrawable = complicationDrawableSparseArray.get(complicationIds[i])
-                complicationDrawable?.setInAmbientMode(ambient)
-                Log.d("Tag","updating complication ambient with id ${complicationIds[i]}")
+            for (slot in 0 until complicationSlots.count) {
+                complicationDrawables[slot].setInAmbientMode(ambient)
+                Log.d("Tag","updating complication ambient with id ${complicationSlots.ids[slot]}")
             }
         }
 
-        private fun updateWatchHandStyle() {
-            if (ambient) {
-                hourPaint.color = Color.WHITE
-                minutePaint.color = Color.WHITE
-                secondPaint.color = Color.WHITE
-                tickAndCirclePaint.color = analogWatchFaceStyle.watchFaceColors.tickPaint
-                circlePaint.color = Color.WHITE
-
-                hourPaint.isAntiAlias = false
-                minutePaint.isAntiAlias = false
-                secondPaint.isAntiAlias = false
-                tickAndCirclePaint.isAntiAlias = false
-                circlePaint.isAntiAlias = false
-
-                hourPaint.clearShadowLayer()
-                minutePaint.clearShadowLayer()
-                secondPaint.clearShadowLayer()
-                tickAndCirclePaint.clearShadowLayer()
-                circlePaint.clearShadowLayer()
-
-            } else {
-                hourPaint.color = analogWatchFaceStyle.watchFaceColors.main
-                minutePaint.color = analogWatchFaceStyle.watchFaceColors.main
-                secondPaint.color = analogWatchFaceStyle.watchFaceColors.highlight
-                tickAndCirclePaint.color = analogWatchFaceStyle.watchFaceColors.tickPaint
-                circlePaint.color = analogWatchFaceStyle.watchFaceColors.main
-
-                hourPaint.isAntiAlias = true
-                minutePaint.isAntiAlias = true
-                secondPaint.isAntiAlias = true
-                tickAndCirclePaint.isAntiAlias = true
-                circlePaint.isAntiAlias = true
-
-                hourPaint.setShadowLayer(
-                        analogWatchFaceStyle.watchFaceDimensions.shadowRadius,
-                        0f,
-                        0f,
-                        analogWatchFaceStyle.watchFaceColors.shadow
-                )
-                minutePaint.setShadowLayer(
-                        analogWatchFaceStyle.watchFaceDimensions.shadowRadius,
-                        0f,
-                        0f,
-                        analogWatchFaceStyle.watchFaceColors.shadow
-                )
-                secondPaint.setShadowLayer(
-                        analogWatchFaceStyle.watchFaceDimensions.shadowRadius,
-                        0f,
-                        0f,
-                        analogWatchFaceStyle.watchFaceColors.shadow
-                )
-                tickAndCirclePaint.setShadowLayer(
-                        analogWatchFaceStyle.watchFaceDimensions.shadowRadius,
-                        0f,
-                        0f,
-                        analogWatchFaceStyle.watchFaceColors.shadow
-                )
-                circlePaint.setShadowLayer(
-                        analogWatchFaceStyle.watchFaceDimensions.shadowRadius,
-                        0f,
-                        0f,
-                        analogWatchFaceStyle.watchFaceColors.shadow
-                )
-            }
+        private fun releaseHandSprites() {
+            hourHandSprite?.release()
+            minuteHandSprite?.release()
+            secondHandSprite?.release()
+            centerCircleSprite?.release()
         }
 
         override fun onInterruptionFilterChanged(interruptionFilter: Int) {
@@ -530,367 +728,540 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
             /* Dim display in mute mode. */
             if (muteMode != inMuteMode) {
                 muteMode = inMuteMode
-                hourPaint.alpha = if (inMuteMode) 100 else 255
-                minutePaint.alpha = if (inMuteMode) 100 else 255
-                secondPaint.alpha = if (inMuteMode) 80 else 255
-                invalidate()
+                if (qualityGovernor.setMuteMode(inMuteMode)) {
+                    applyQualityTier()
+                }
+                onInput(INVALIDATE_REASON_MUTE)
             }
         }
 
-        override fun onSurfaceChanged(holder: SurfaceHolder, format: Int, width: Int, height: Int) {
-            super.onSurfaceChanged(holder, format, width, height)
+        /**
+         * Passes the battery level and power save mode on to the quality governor. [intent] is
+         * either a battery change or a power save mode change, which carries no level, so the
+         * level is then read from the sticky battery broadcast.
+         */
+        private fun updateBatteryState(intent: Intent?) {
+            var batteryIntent = intent
+            if (batteryIntent?.action != Intent.ACTION_BATTERY_CHANGED) {
+                batteryIntent = this@AbstractKotlinWatchFace.registerReceiver(null,
+                        IntentFilter(Intent.ACTION_BATTERY_CHANGED))
+            }
+            val level = batteryIntent?.getIntExtra(BatteryManager.EXTRA_LEVEL, -1) ?: -1
+            val scale = batteryIntent?.getIntExtra(BatteryManager.EXTRA_SCALE, -1) ?: -1
+            if (level < 0 || scale <= 0) {
+                return
+            }
+            val powerManager = getSystemService(Context.POWER_SERVICE) as PowerManager
 
-            /*
-             * Find the coordinates of the center point on the screen, and ignore the window
-             * insets, so that, on round watches with a "chin", the watch face is centered on the
-             * entire screen, not just the usable portion.
-             */
-            centerX = width / 2f
-            centerY = height / 2f
+            val powerSaveMode = powerManager.isPowerSaveMode
+            if (qualityGovernor.setBatteryState(level * 100 / scale, powerSaveMode)) {
+                applyQualityTier()
+                onInput(INVALIDATE_REASON_QUALITY)
+            }
+        }
 
-            /*
-             * Calculate lengths of different hands based on watch screen size.
-             */
-            secondHandLengthRatio =
-                    (centerX * analogWatchFaceStyle.watchFaceDimensions.secondHandRadiusRatio)
-            minuteHandLengthRatio =
-                    (centerX * analogWatchFaceStyle.watchFaceDimensions.minuteHandRadiusRatio)
-            hourHandLengthRatio =
-                    (centerX * analogWatchFaceStyle.watchFaceDimensions.hourHandRadiusRatio)
+        /**
+         * Applies the quality governor's current tier to the sprites, the paint palettes and the
+         * second hand frame rate, and drops the layers that were drawn at the old quality.
+         */
+        private fun applyQualityTier() {
+            updateSpriteQuality()
+            buildPaintPalettes()
+            frameScheduler.framesPerSecond = qualityGovernor.getSecondHandFps(
+                    analogWatchFaceStyle.watchFaceStyle.secondHandFps)
+            dialLayerCache.invalidate()
+            compositeFrameCache.invalidate()
+        }
 
-            /*
-             * Calculate the size of the complications
-             */
-            complicationWidthRatio1 =
-                    (width * analogWatchFaceStyle.watchFaceComplication1.widthRatio)
-            complicationHeightRatio1 =
-                    (height * analogWatchFaceStyle.watchFaceComplication1.heightRatio)
-            complicationXPos1 =
-                    ((width * analogWatchFaceStyle.watchFaceComplication1.xPos) -
-                            (complicationWidthRatio1 / 2))
-            complicationYPos1 =
-                    ((height * analogWatchFaceStyle.watchFaceComplication1.yPos) -
-                            (complicationHeightRatio1 / 2))
-
-            complicationWidthRatio2 =
-                    (width * analogWatchFaceStyle.watchFaceComplication2.widthRatio)
-            complicationHeightRatio2 =
-                    (height * analogWatchFaceStyle.watchFaceComplication2.heightRatio)
-            complicationXPos2 =
-                    ((width * analogWatchFaceStyle.watchFaceComplication2.xPos) -
-                            (complicationWidthRatio2 / 2))
-            complicationYPos2 =
-                    ((height * analogWatchFaceStyle.watchFaceComplication2.yPos) -
-                            (complicationHeightRatio2 / 2))
-
-            complicationWidthRatio3 =
-                    (width * analogWatchFaceStyle.watchFaceComplication3.widthRatio)
-            complicationHeightRatio3 =
-                    (height * analogWatchFaceStyle.watchFaceComplication3.heightRatio)
-            complicationXPos3 =
-                    ((width * analogWatchFaceStyle.watchFaceComplication3.xPos) -
-                            (complicationWidthRatio3 / 2))
-            complicationYPos3 =
-                    ((height * analogWatchFaceStyle.watchFaceComplication3.yPos) -
-                            (complicationHeightRatio3 / 2))
-
-            val bounds1 = Rect(
-                    complicationXPos1.roundToInt(), // Left
-                    complicationYPos1.roundToInt(), // Top
-                    (complicationXPos1 + complicationWidthRatio1).roundToInt(), // Right
-                    (complicationYPos1 + complicationHeightRatio1).roundToInt()) // Bottom
-
-            complicationDrawableSparseArray.get(complicationIds[0])?.bounds = bounds1
-
-            val bounds2 = Rect(
-                    complicationXPos2.roundToInt(), // Left
-                    complicationYPos2.roundToInt(), // Top
-                    (complicationXPos2 + complicationWidthRatio2).roundToInt(), // Right
-                    (complicationYPos2 + complicationHeightRatio2).roundToInt()) // Bottom
-
-            complicationDrawableSparseArray.get(complicationIds[1])?.bounds = bounds2
-
-            val bounds3 = Rect(
-                    complicationXPos3.roundToInt(), // Left
-                    complicationYPos3.roundToInt(), // Top
-                    (complicationXPos3 + complicationWidthRatio3).roundToInt(), // Right
-                    (complicationYPos3 + complicationHeightRatio3).roundToInt()) // Bottom
-
-            complicationDrawableSparseArray.get(complicationIds[2])?.bounds = bounds3
+        private fun updateSpriteQuality() {
+            val antiAlias = qualityGovernor.antiAliasEnabled
+            val shadows = qualityGovernor.shadowsEnabled
+            hourHandSprite?.setInteractiveQuality(antiAlias, shadows)
+            minuteHandSprite?.setInteractiveQuality(antiAlias, shadows)
+            secondHandSprite?.setInteractiveQuality(antiAlias, shadows)
+            centerCircleSprite?.setInteractiveQuality(antiAlias, shadows)
+        }
+
+        override fun onSurfaceChanged(holder: SurfaceHolder, format: Int, width: Int, height: Int) {
+            super.onSurfaceChanged(holder, format, width, height)
+            surfaceChangedNanos = SystemClock.elapsedRealtimeNanos()
+
+            surfaceWidth = width
+            surfaceHeight = height
+
+            complicationSlots.layout(width, height)
+            for (slot in 0 until complicationSlots.count) {
+                val bounds = Rect()
+                complicationSlots.getBounds(slot, bounds)
+                complicationDrawables[slot].bounds = bounds
+                // Cached images are decoded at the slot's size.
+                updateComplicationDrawableData(slot, System.currentTimeMillis())
+            }
+            complicationLayerCache.invalidateAll()
 
             Log.d("Tag", "Set Bounds")
 
             if (backgroundImageEnabled) {
-                // Scale loaded background image (more efficient) if surface dimensions change.
-                val scale = width.toFloat() / backgroundBitmap.width.toFloat()
-
-                backgroundBitmap = Bitmap.createScaledBitmap(
-                        backgroundBitmap,
-                        (backgroundBitmap.width * scale).toInt(),
-                        (backgroundBitmap.height * scale).toInt(), true
-                )
-
                 /*
-                 * Create a gray version of the image only if it will look nice on the device in
-                 * ambient mode. That means we don't want devices that support burn-in
-                 * protection (slight movements in pixels, not great for images going all the way
-                 * to edges) and low ambient mode (degrades image quality).
-                 *
-                 * Also, if your watch face will know about all images ahead of time (users aren't
-                 * selecting their own photos for the watch face), it will be more
-                 * efficient to create a black/white version (png, etc.) and load that when
-                 * you need it.
+                 * Scale the background image to the surface width. It is drawn scaled straight
+                 * into the dial layers rather than keeping a scaled copy, so the original is
+                 * never scaled twice and no copy needs building on the main thread.
                  */
-                if (!burnInProtection && !lowBitAmbient) {
-                    initGrayBackgroundBitmap()
-                }
+                val scale = width.toFloat() / backgroundBitmap.width.toFloat()
+                backgroundBounds.set(0, 0,
+                        (backgroundBitmap.width * scale).toInt(),
+                        (backgroundBitmap.height * scale).toInt())
             }
 
+            var hourHandDrawable: Drawable? = null
             if(analogWatchFaceStyle.watchFaceHourHand.drawable != 0) {
-                val offset = analogWatchFaceStyle.watchFaceHourHand.offset
                 hourHandDrawable = getDrawable(analogWatchFaceStyle.watchFaceHourHand.drawable)
-                hourHandDrawable?.colorFilter =
-                        PorterDuffColorFilter(analogWatchFaceStyle.watchFaceColors.main,
-                                PorterDuff.Mode.MULTIPLY)
-                val dWidth = hourHandDrawable?.intrinsicWidth
-                val dHeight = hourHandDrawable?.intrinsicHeight
-
-                val outHeight = dHeight?.minus(dHeight.times(offset))
-                val scale = outHeight?.div(width * analogWatchFaceStyle.watchFaceDimensions.hourHandRadiusRatio)
-
-                Log.d("Tag", "Out Height: $outHeight Width: $width Hour Scale: $scale")
-
-                hourHandWidth = dWidth!!.times(scale!!)
-                hourHandHeight = dHeight.times(scale)
-                hourOffset = hourHandHeight * offset
             }
 
+            var minuteHandDrawable: Drawable? = null
             if(analogWatchFaceStyle.watchFaceMinuteHand.drawable != 0) {
-                val offset = analogWatchFaceStyle.watchFaceMinuteHand.offset
                 minuteHandDrawable = getDrawable(analogWatchFaceStyle.watchFaceMinuteHand.drawable)
-                minuteHandDrawable?.colorFilter =
-                        PorterDuffColorFilter(analogWatchFaceStyle.watchFaceColors.main,
-                                PorterDuff.Mode.MULTIPLY)
-                val dWidth = minuteHandDrawable?.intrinsicWidth
-                val dHeight = minuteHandDrawable?.intrinsicHeight
+            }
 
-                val outHeight = dHeight?.minus(dHeight.times(offset))
-                val scale = outHeight?.div(width * analogWatchFaceStyle.watchFaceDimensions.minuteHandRadiusRatio)
-                Log.d("Tag", "Out Height: $outHeight Width: $width Minute Scale: $scale")
+            dialGeometry = DialGeometry(width, height, analogWatchFaceStyle, datePaint,
+                    hourHandDrawable, minuteHandDrawable)
+
+            // Sprites are sized for the old surface, so they are rasterized again on demand.
+            releaseHandSprites()
+            val colors = analogWatchFaceStyle.watchFaceColors
+            val dimensions = analogWatchFaceStyle.watchFaceDimensions
+            val centerX = dialGeometry.centerX
+            val hourSprite = if (hourHandDrawable == null)
+                LineHandSprite(centerX, dialGeometry.armStartY, dialGeometry.hourHandEndY,
+                        dimensions.hourHandWidth, colors.main, dimensions.shadowRadius,
+                        colors.shadow)
+            else
+                DrawableHandSprite(hourHandDrawable, dialGeometry.hourHandBounds, colors.main)
+            val minuteSprite = if (minuteHandDrawable == null)
+                LineHandSprite(centerX, dialGeometry.armStartY, dialGeometry.minuteHandEndY,
+                        dimensions.minuteHandWidth, colors.main, dimensions.shadowRadius,
+                        colors.shadow)
+            else
+                DrawableHandSprite(minuteHandDrawable, dialGeometry.minuteHandBounds, colors.main)
+            val secondSprite = LineHandSprite(centerX, dialGeometry.armStartY,
+                    dialGeometry.secondHandEndY, dimensions.secondHandWidth, colors.highlight,
+                    dimensions.shadowRadius, colors.shadow)
+            val circleSprite = CenterCircleSprite(centerX, dialGeometry.centerY,
+                    dimensions.innerCircleRadius, colors.main, dimensions.shadowRadius,
+                    colors.shadow)
+            hourHandSprite = hourSprite
+            minuteHandSprite = minuteSprite
+            secondHandSprite = secondSprite
+            centerCircleSprite = circleSprite
+            updateSpriteQuality()
+
+            for (renderMode in 0 until RENDER_MODE_COUNT) {
+                renderPlans[renderMode] = compileRenderPlan(complicationSlots, renderMode,
+                        dialGeometry, hourSprite, minuteSprite, secondSprite, circleSprite)
+            }
 
-                minuteHandWidth = dWidth!!.times(scale!!)
-                minuteHandHeight = dHeight.times(scale)
-                minuteOffset = minuteHandHeight * offset
+            /*
+             * Everything the dial layers are composed from depends on the surface size. The old
+             * layers are still drawn until the render thread has composed new ones.
+             */
+            dialLayerCache.invalidate()
+            compositeFrameCache.release()
+        }
+
+        override fun onDraw(canvas: Canvas, bounds: Rect) {
+            invalidationCoalescer.onFrameDrawn()
+            val plan = renderPlans[getRenderMode()] ?: return
+            if (plan.renderMode == RENDER_MODE_INTERACTIVE) {
+                drawInteractiveFrame(canvas, plan)
+            } else {
+                drawAmbientFrame(canvas, plan)
+            }
+
+            if (surfaceChangedNanos != 0L) {
+                if (BuildConfig.DEBUG) {
+                    Log.d(TAG, "Surface change to first frame: " +
+                            "${(SystemClock.elapsedRealtimeNanos() - surfaceChangedNanos) / 1e6f}" +
+                            "ms, ${tiledRasterizer.tileCount} tiles")
+                }
+                surfaceChangedNanos = 0
             }
         }
 
-        private fun initGrayBackgroundBitmap() {
-            grayBackgroundBitmap = Bitmap.createBitmap(
-                    backgroundBitmap.width,
-                    backgroundBitmap.height,
-                    Bitmap.Config.ARGB_8888
-            )
-            val canvas = Canvas(grayBackgroundBitmap)
-            val grayPaint = Paint()
-            val colorMatrix = ColorMatrix()
-            colorMatrix.setSaturation(0f)
-            val filter = ColorMatrixColorFilter(colorMatrix)
-            grayPaint.colorFilter = filter
-            canvas.drawBitmap(backgroundBitmap, 0f, 0f, grayPaint)
+        /**
+         * Draws an interactive frame, timed by the frame scheduler and the quality governor.
+         */
+        private fun drawInteractiveFrame(canvas: Canvas, plan: RenderPlan) {
+            val frameStartNanos = SystemClock.elapsedRealtimeNanos()
+            val startMs = System.currentTimeMillis()
+            frameScheduler.onFrameStart(startMs)
+            val now = frameScheduler.getFrameTimeMs(startMs)
+            time.setTime(now)
+
+            updateHandRotations()
+            runOps(canvas, plan, getPalette(plan.renderMode), plan.frameOps, now)
+            frameScheduler.onFrameEnd(System.currentTimeMillis())
+
+            val durationMs = (SystemClock.elapsedRealtimeNanos() - frameStartNanos) / 1e6f
+            if (qualityGovernor.onFrameDrawn(durationMs)) {
+                // Takes effect from the next frame.
+                applyQualityTier()
+            }
+            requestStaleLayers(plan.renderMode)
+            // Have the ambient layers ready before ambient is entered, so entering it never
+            // waits for them to be composed.
+            requestStaleLayers(getAmbientRenderMode())
         }
 
-        override fun onDraw(canvas: Canvas, bounds: Rect) {
+        /**
+         * Draws an ambient frame straight from the plan with the ambient palette; no composite
+         * frame, frame scheduling or quality tracking. The system waits for the first ambient
+         * frame when entering ambient, so this does as little as possible.
+         */
+        private fun drawAmbientFrame(canvas: Canvas, plan: RenderPlan) {
             val now = System.currentTimeMillis()
-            calendar.timeInMillis = now
+            time.setTime(now)
+            updateHandRotations()
+
+            val palette = paintPalettes[plan.renderMode]!!
+            for (op in plan.frameOps) {
+                when (op) {
+                    OP_DIAL -> drawDialLayer(canvas, plan.renderMode, palette)
+                    OP_COMPLICATIONS -> if (!hideComplicationsInAmbient) {
+                        drawComplications(canvas, now)
+                    }
+                    else -> plan.handSprites[op]?.draw(canvas, plan.renderMode, handRotations[op],
+                            plan.pivotX, plan.pivotY, palette.handPaints[op])
+                }
+            }
+            requestStaleLayers(plan.renderMode)
+        }
+
+        /**
+         * Has the render thread compose new dial layers and hand sprites for [renderMode] where
+         * the ones just drawn were stale. They are swapped in, and a frame requested, once done.
+         */
+        private fun requestStaleLayers(renderMode: Int) {
+            if (dialLayerCache.needsRequest(renderMode)) {
+                dialLayerCache.markRequested(renderMode)
+                val generation = dialLayerCache.generation
+                val width = surfaceWidth
+                val height = surfaceHeight
+                val palette = paintPalettes[renderMode]!!
+                val geometry = dialGeometry
+                val background = if (backgroundImageEnabled) backgroundBitmap else null
+                val bounds = Rect(backgroundBounds)
+                layerRenderThread.compose(
+                        { composeDialLayer(renderMode, width, height, palette, geometry,
+                                background, bounds, tiledRasterizer) },
+                        { layer ->
+                            if (dialLayerCache.put(renderMode, layer, generation) &&
+                                    renderMode == getRenderMode()) {
+                                onInput(INVALIDATE_REASON_LAYER_READY)
+                            }
+                        })
+            }
+            requestStaleSprite(hourHandSprite, renderMode)
+            requestStaleSprite(minuteHandSprite, renderMode)
+            requestStaleSprite(secondHandSprite, renderMode)
+            requestStaleSprite(centerCircleSprite, renderMode)
+        }
 
-            drawBackground(canvas)
-            drawComplications(canvas, now)
-            drawWatchFace(canvas)
+        private fun requestStaleSprite(sprite: HandSprite?, renderMode: Int) {
+            if (sprite == null || !sprite.needsRequest(renderMode)) {
+                return
+            }
+            sprite.markRequested(renderMode)
+            layerRenderThread.compose(
+                    { sprite.rasterize(renderMode) },
+                    { raster ->
+                        if (sprite.install(renderMode, raster) && renderMode == getRenderMode()) {
+                            onInput(INVALIDATE_REASON_LAYER_READY)
+                        }
+                    })
         }
 
-        private fun drawBackground(canvas: Canvas) {
+        /**
+         * Draws [ops] from an interactive [plan] in order.
+         */
+        private fun runOps(canvas: Canvas, plan: RenderPlan, palette: PaintPalette, ops: IntArray,
+                           currentTimeMillis: Long) {
+            for (op in ops) {
+                when (op) {
+                    OP_DIAL -> drawDialLayer(canvas, plan.renderMode, palette)
+                    OP_COMPOSITE_FRAME ->
+                        drawCompositeFrame(canvas, plan, palette, currentTimeMillis)
+                    OP_COMPLICATIONS -> drawComplications(canvas, currentTimeMillis)
+                    else -> plan.handSprites[op]?.draw(canvas, plan.renderMode, handRotations[op],
+                            plan.pivotX, plan.pivotY, palette.handPaints[op])
+                }
+            }
+        }
+
+        /**
+         * Blits the frame holding everything that only changes once a minute, redrawing it from
+         * the plan's composite ops first if the minute or its content changed.
+         */
+        private fun drawCompositeFrame(canvas: Canvas, plan: RenderPlan, palette: PaintPalette,
+                                       currentTimeMillis: Long) {
+            val minute = currentTimeMillis / DateUtils.MINUTE_IN_MILLIS
+            var frame = compositeFrameCache.get(minute)
+            if (frame == null) {
+                runOps(compositeFrameCache.beginRebuild(surfaceWidth, surfaceHeight,
+                        opaqueLayerConfig, minute),
+                        plan, palette, plan.compositeOps, currentTimeMillis)
+                frame = compositeFrameCache.getFrame()
+            }
+            canvas.drawBitmap(frame, 0f, 0f, null)
+        }
 
-            if (ambient && (lowBitAmbient || burnInProtection)) {
-                canvas.drawColor(backgroundAmbientPaint.color)
+        /**
+         * Works out the rotation of every hand for the current time.
+         */
+        private fun updateHandRotations() {
+            /*
+             * These calculations reflect the rotation in degrees per unit of time, e.g.,
+             * 360 / 60 = 6 and 360 / 12 = 30.
+             */
+            val seconds = time.second + time.millisecond / 1000f
+            handRotations[OP_SECOND_HAND] = seconds * 6f
 
-            } else if (ambient && backgroundImageEnabled) {
-                canvas.drawBitmap(grayBackgroundBitmap, 0f, 0f, backgroundAmbientPaint)
+            handRotations[OP_MINUTE_HAND] = time.minute * 6f
 
-            } else if (backgroundImageEnabled) {
-                canvas.drawBitmap(backgroundBitmap, 0f, 0f, backgroundPaint)
+            val hourHandOffset = time.minute / 2f
+            handRotations[OP_HOUR_HAND] = time.hour * 30 + hourHandOffset
+        }
 
+        /**
+         * Returns the render mode the next frame will be drawn in, used to key cached layers.
+         */
+        private fun getRenderMode(): Int {
+            return if (ambient) getAmbientRenderMode() else RENDER_MODE_INTERACTIVE
+        }
+
+        private fun getAmbientRenderMode(): Int {
+            return if (lowBitAmbient || burnInProtection)
+                RENDER_MODE_LOW_BIT_AMBIENT else RENDER_MODE_AMBIENT
+        }
+
+        /**
+         * Blits the dial layer for [renderMode]. Luminance layers are tinted over the palette's
+         * background color.
+         */
+        private fun drawDialLayer(canvas: Canvas, renderMode: Int, palette: PaintPalette) {
+            val dialLayer = getDialLayer(renderMode)
+            val tint = palette.luminanceTint
+            if (tint != null && dialLayer.config == Bitmap.Config.ALPHA_8) {
+                canvas.drawColor(palette.backgroundColor)
+                canvas.drawBitmap(dialLayer, 0f, 0f, tint)
             } else {
-                canvas.drawColor(backgroundPaint.color)
+                canvas.drawBitmap(dialLayer, 0f, 0f, null)
             }
         }
 
-        private fun drawWatchFace(canvas: Canvas) {
-            /*
-             * Draw ticks. Usually you will want to bake this directly into the photo, but in
-             * cases where you want to allow users to select their own photos, this dynamically
-             * creates them on top of the photo.
-             */
-            val innerTickRadius = centerX - 10
-            val outerTickRadius = centerX
-            for (tickIndex in 0..11) {
-                val tickRot = (tickIndex.toDouble() * Math.PI * 2.0 / 12).toFloat()
-                val innerX = Math.sin(tickRot.toDouble()).toFloat() * innerTickRadius
-                val innerY = (-Math.cos(tickRot.toDouble())).toFloat() * innerTickRadius
-                val outerX = Math.sin(tickRot.toDouble()).toFloat() * outerTickRadius
-                val outerY = (-Math.cos(tickRot.toDouble())).toFloat() * outerTickRadius
-                canvas.drawLine(
-                        centerX + innerX, centerY + innerY,
-                        centerX + outerX, centerY + outerY, tickAndCirclePaint
-                )
+        /**
+         * Returns the static dial (background, ticks and numerals) for [renderMode]. A stale
+         * layer is returned as is, to be replaced by the render thread; only if there is no layer
+         * at all, e.g. on first show, is one composed in place.
+         */
+        private fun getDialLayer(renderMode: Int): Bitmap {
+            var dialLayer = dialLayerCache.get(renderMode)
+            if (dialLayer == null) {
+                dialLayer = composeDialLayer(renderMode, tiledRasterizer)
+                dialLayerCache.put(renderMode, dialLayer, dialLayerCache.generation)
             }
+            return dialLayer!!
+        }
 
-            val screenWidth = centerX * 2
-            val screenHeight = centerY * 2
-            val textBounds = Rect()
-            datePaint.getTextBounds("3", 0, 1, textBounds)
-            val textWidth = textBounds.width().toFloat()
-            val textHeight = textBounds.height().toFloat()
-            datePaint.getTextBounds("12", 0, 2, textBounds)
-            val topOffset = (textBounds.width() / 2).toFloat()
-            val offset = 12f
+        /**
+         * Replaces the rasterizer dial layers are composed with by one splitting them into
+         * [tileCount] tiles, so benchmarks can compare tile counts.
+         */
+        @VisibleForTesting
+        internal fun setRasterTileCount(tileCount: Int) {
+            tiledRasterizer.shutdown()
+            tiledRasterizer = TiledRasterizer(tileCount)
+        }
 
-            if(isInAmbientMode)
-                datePaint.color = Color.WHITE
-            else
-                datePaint.color = analogWatchFaceStyle.watchFaceColors.highlight
+        /**
+         * Composes the dial layer for [renderMode] at the current surface size with [rasterizer].
+         * For tests.
+         */
+        @VisibleForTesting
+        internal fun composeDialLayer(renderMode: Int, rasterizer: TiledRasterizer): Bitmap {
+            return composeDialLayer(renderMode, surfaceWidth, surfaceHeight,
+                    paintPalettes[renderMode]!!, dialGeometry,
+                    if (backgroundImageEnabled) backgroundBitmap else null, backgroundBounds,
+                    rasterizer)
+        }
 
-            // draw out the number ticks
-            if(analogWatchFaceStyle.watchFaceStyle.topNumber)
-                canvas.drawText("12", centerX - topOffset,
-                        textHeight + offset, datePaint)
-            if(analogWatchFaceStyle.watchFaceStyle.rightNumber)
-                canvas.drawText("3", screenWidth - textWidth - offset,
-                        centerY + textHeight / 2, datePaint)
-            if(analogWatchFaceStyle.watchFaceStyle.bottomNumber)
-                canvas.drawText("6", centerX - textWidth / 2,
-                        screenHeight - offset, datePaint)
-            if(analogWatchFaceStyle.watchFaceStyle.leftNumber)
-                canvas.drawText("9", offset, centerY + textHeight / 2, datePaint)
+        /**
+         * Draws the ticks and numerals of the dial for [renderMode], without the background.
+         * For tests.
+         */
+        @VisibleForTesting
+        internal fun drawDialMarks(canvas: Canvas, renderMode: Int) {
+            drawTicks(canvas, dialGeometry, paintPalettes[renderMode]!!)
+            drawNumerals(canvas, dialGeometry, paintPalettes[renderMode]!!)
+        }
 
-            /*
-             * These calculations reflect the rotation in degrees per unit of time, e.g.,
-             * 360 / 60 = 6 and 360 / 12 = 30.
-             */
-            val seconds =
-                calendar.get(Calendar.SECOND) + calendar.get(Calendar.MILLISECOND) / 1000f
-            val secondsRotation = seconds * 6f
+        /**
+         * Composes the dial layer for [renderMode] from the given inputs only, so it can run on
+         * the render thread, in the tiles of [rasterizer]. A gray dial is kept as a luminance
+         * layer.
+         */
+        private fun composeDialLayer(renderMode: Int, width: Int, height: Int,
+                                     palette: PaintPalette, geometry: DialGeometry,
+                                     background: Bitmap?, backgroundBounds: Rect,
+                                     rasterizer: TiledRasterizer): Bitmap {
+            val layer = rasterizeDialLayer(renderMode, width, height, palette, geometry,
+                    background, backgroundBounds, rasterizer)
+            if (palette.luminanceTint == null) {
+                return layer
+            }
+            val luminance = toLuminanceLayer(layer)
+            layer.recycle()
+            return luminance
+        }
 
-            val minutesRotation = calendar.get(Calendar.MINUTE) * 6f
+        /**
+         * Rasterizes the dial layer for [renderMode] in full color, as [composeDialLayer] does.
+         */
+        private fun rasterizeDialLayer(renderMode: Int, width: Int, height: Int,
+                                       palette: PaintPalette, geometry: DialGeometry,
+                                       background: Bitmap?, backgroundBounds: Rect,
+                                       rasterizer: TiledRasterizer): Bitmap {
+            // Low-bit screens show the image as a sparse 1-bit dither, baked into their layer.
+            val dialBackground = if (background != null &&
+                    renderMode == RENDER_MODE_LOW_BIT_AMBIENT)
+                ditherBackground(background, backgroundBounds) else background
+            val layer = rasterizer.rasterize(width, height, opaqueLayerConfig) { canvas ->
+                canvas.drawColor(palette.backgroundColor)
+                drawBackground(canvas, renderMode, dialBackground, backgroundBounds)
+                drawTicks(canvas, geometry, palette)
+                drawNumerals(canvas, geometry, palette)
+            }
+            if (dialBackground !== background) {
+                dialBackground?.recycle()
+            }
+            return layer
+        }
 
-            val hourHandOffset = calendar.get(Calendar.MINUTE) / 2f
-            val hoursRotation = calendar.get(Calendar.HOUR) * 30 + hourHandOffset
+        /**
+         * Draws [background] over the background color. In low-bit ambient it must be the
+         * dithered background from ditherBackground.
+         */
+        private fun drawBackground(canvas: Canvas, renderMode: Int, background: Bitmap?,
+                                   backgroundBounds: Rect) {
+
+            if (background == null) {
+                // The background color is already drawn.
+
+            } else if (renderMode == RENDER_MODE_LOW_BIT_AMBIENT) {
+                canvas.drawBitmap(background, backgroundBounds.left.toFloat(),
+                        backgroundBounds.top.toFloat(), ditheredBackgroundPaint)
+
+            } else if (renderMode == RENDER_MODE_AMBIENT) {
+                /*
+                 * Gray the image only if it will look nice on the device in ambient mode. That
+                 * means we don't want devices that support burn-in protection (slight movements
+                 * in pixels, not great for images going all the way to edges) and low ambient
+                 * mode (degrades image quality), which use RENDER_MODE_LOW_BIT_AMBIENT.
+                 */
+                canvas.drawBitmap(background, null, backgroundBounds, grayscalePaint)
 
-            /*
-             * Save the canvas state before we can begin to rotate it.
-             */
-            canvas.save()
-
-            val distanceFromCenterToArms =
-                analogWatchFaceStyle.watchFaceDimensions.innerCircleRadius +
-                        analogWatchFaceStyle.watchFaceDimensions.innerCircleToArmsDistance
-
-            canvas.rotate(hoursRotation, centerX, centerY)
-            if(hourHandDrawable == null) {
-                canvas.drawLine(
-                        centerX,
-                        centerY - distanceFromCenterToArms,
-                        centerX,
-                        centerY - hourHandLengthRatio,
-                        hourPaint
-                )
-            } else {
-                hourHandDrawable?.bounds?.set(
-                        (centerX - (hourHandWidth/2)).toInt(),
-                        (centerY - hourHandHeight + hourOffset).toInt(),
-                        (centerX + (hourHandWidth/2)).toInt(),
-                        (centerY + hourOffset).toInt())
-                hourHandDrawable?.draw(canvas)
-            }
-
-            canvas.rotate(minutesRotation - hoursRotation, centerX, centerY)
-            if(minuteHandDrawable == null) {
-                canvas.drawLine(
-                        centerX,
-                        centerY - distanceFromCenterToArms,
-                        centerX,
-                        centerY - minuteHandLengthRatio,
-                        minutePaint
-                )
             } else {
-                minuteHandDrawable?.bounds?.set(
-                        (centerX - (minuteHandWidth/2)).toInt(),
-                        (centerY - minuteHandHeight + minuteOffset).toInt(),
-                        (centerX + (minuteHandWidth/2)).toInt(),
-                        (centerY + minuteOffset).toInt())
-                minuteHandDrawable?.draw(canvas)
+                canvas.drawBitmap(background, null, backgroundBounds, backgroundImagePaint)
             }
+        }
 
+        private fun drawTicks(canvas: Canvas, geometry: DialGeometry, palette: PaintPalette) {
             /*
-             * Ensure the "seconds" hand is drawn only when we are in interactive mode.
-             * Otherwise, we only update the watch face once a minute.
+             * Draw ticks. Usually you will want to bake this directly into the photo, but in
+             * cases where you want to allow users to select their own photos, this dynamically
+             * creates them on top of the photo.
              */
-            if (!ambient) {
-                canvas.rotate(secondsRotation - minutesRotation, centerX, centerY)
-                canvas.drawLine(
-                        centerX,
-                        centerY - distanceFromCenterToArms,
-                        centerX,
-                        centerY - secondHandLengthRatio,
-                        secondPaint
-                )
-            }
-            canvas.drawCircle(
-                    centerX,
-                    centerY,
-                    analogWatchFaceStyle.watchFaceDimensions.innerCircleRadius,
-                    circlePaint
-            )
+            canvas.drawLines(geometry.tickLines, palette.tickPaint)
+        }
 
-            /* Restore the canvas' original orientation. */
-            canvas.restore()
+        private fun drawNumerals(canvas: Canvas, geometry: DialGeometry, palette: PaintPalette) {
+            // draw out the number ticks
+            for (i in 0 until geometry.numeralCount) {
+                if (!palette.numeralGlyphs.draw(canvas, geometry.numeralText[i]!!,
+                                geometry.numeralX[i], geometry.numeralY[i])) {
+                    canvas.drawText(geometry.numeralText[i], geometry.numeralX[i],
+                            geometry.numeralY[i], palette.numeralPaint)
+                }
+            }
         }
 
+        /**
+         * Draws all complications, each blitted from its cached layer, which is redrawn first if
+         * it is stale. Whether they are hidden in ambient is up to the caller.
+         */
         private fun drawComplications(canvas: Canvas, currentTimeMillis: Long) {
-            if(!SettingsUtil.GetHideComplications(applicationContext) || !isInAmbientMode) {
-                var complicationId: Int
-                var complicationDrawable: ComplicationDrawable?
-                for (i in 0..(complicationIds.size - 1)) {
-                    complicationId = complicationIds[i]
-                    val complicationData: ComplicationData? = complicationDataSparseArray.get(complicationId)
-
-                    if (complicationData != null) {
-                        complicationDrawable = complicationDrawableSparseArray.get(complicationId)
-
-                        if (complicationId == complicationId1 &&
-                                complicationData.type == ComplicationData.TYPE_LONG_TEXT)
-                                /*complicationData.longTitle != null &&
-                                complicationData.longTitle.getText(baseContext, currentTimeMillis)
-                                == "That is when\nthe world will end")*/
-                            drawDarkoLongText(complicationDrawable, complicationData, currentTimeMillis, canvas)
-                        else
-                            complicationDrawable?.draw(canvas, currentTimeMillis)
+            val palette = getPaletteIndex(getRenderMode())
+            for (i in 0 until complicationSlots.count) {
+                val data: ComplicationData = complicationData[i] ?: continue
+                if (isCachedImageType(data) &&
+                        data.isActive(currentTimeMillis) != complicationDataActive[i]) {
+                    // The cached copy doesn't know when it is active; the drawable gets the
+                    // provider's data while it isn't, and the copy again once it is.
+                    updateComplicationDrawableData(i, currentTimeMillis)
+                    complicationLayerCache.invalidate(i)
+                }
+                val complicationDrawable = complicationDrawables[i]
+
+                var layer = complicationLayerCache.get(i, palette, currentTimeMillis)
+                if (layer == null) {
+                    val darkoLongText = isDarkoLongText(complicationSlots.ids[i], data)
+                    val bounds = complicationDrawable.bounds
+                    // The long text is drawn wider than its slot, across the whole surface.
+                    if (darkoLongText) {
+                        complicationLayerBounds.set(0, bounds.top, surfaceWidth, bounds.bottom)
+                    } else {
+                        complicationLayerBounds.set(bounds)
+                    }
+                    val layerCanvas = complicationLayerCache.beginRedraw(i, palette,
+                            complicationLayerBounds, currentTimeMillis)
+                    if (darkoLongText) {
+                        drawDarkoLongText(complicationDrawable, data, currentTimeMillis,
+                                layerCanvas)
+                    } else {
+                        complicationDrawable.draw(layerCanvas, currentTimeMillis)
                     }
+                    layer = complicationLayerCache.endRedraw(i)
                 }
+                val layerBounds = complicationLayerCache.getBounds(i)
+                canvas.drawBitmap(layer, layerBounds.left.toFloat(), layerBounds.top.toFloat(),
+                        null)
             }
         }
 
+        private fun isCachedImageType(data: ComplicationData): Boolean {
+            return data.type == ComplicationData.TYPE_ICON ||
+                    data.type == ComplicationData.TYPE_SMALL_IMAGE
+        }
+
+        private fun isDarkoLongText(complicationId: Int, complicationData: ComplicationData): Boolean {
+            return complicationId == FIRST_COMPLICATION_ID &&
+                    complicationData.type == ComplicationData.TYPE_LONG_TEXT
+                    /*complicationData.longTitle != null &&
+                    complicationData.longTitle.getText(baseContext, currentTimeMillis)
+                    == "That is when\nthe world will end")*/
+        }
+
         private fun drawDarkoLongText(complicationDrawable: ComplicationDrawable?,
                                       complicationData: ComplicationData,
                                       currentTimeMillis: Long,
                                       canvas: Canvas) {
             if(complicationDrawable?.bounds != null) {
-                val textRect = TextRect(datePaint)
+                val textRect = longTextRects[getPaletteIndex(getRenderMode())]!!
 
                 var titleText: String? = null
                 if(complicationData.longTitle != null) {
-                    titleText = complicationData.longTitle.getText(applicationContext, currentTimeMillis).toString()
+                    titleText = getText(TEXT_TITLE, complicationData.longTitle.getText(applicationContext, currentTimeMillis))
                 } else if (complicationData.shortTitle != null) {
-                    titleText = complicationData.shortTitle.getText(applicationContext, currentTimeMillis).toString()
+                    titleText = getText(TEXT_TITLE, complicationData.shortTitle.getText(applicationContext, currentTimeMillis))
                 }
 
                 val height = (complicationDrawable.bounds.height().toFloat()/2).toInt()
@@ -900,7 +1271,7 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
                     height = height.toFloat().div(2).toInt()*/
                 val width = (complicationDrawable.bounds.width().toFloat() * 1.6f).toInt()
 
-                textRect.prepare(complicationData.longText.getText(applicationContext, currentTimeMillis).toString(),
+                textRect.prepare(getText(TEXT_LONG_TEXT, complicationData.longText.getText(applicationContext, currentTimeMillis)),
                         width, // width
                          height) // height
 
@@ -911,7 +1282,7 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
                         complicationDrawable.bounds.top) // top
 
                 if(titleText != null) {
-                    val titleRect = TextRect(textPaint)
+                    val titleRect = titleTextRect
                     titleRect.prepare(titleText,
                             width,
                             height)
@@ -924,6 +1295,17 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
             }
         }
 
+        /**
+         * Returns [source] as a string, reusing the last one converted for [text] if it has the
+         * same characters. Providers build a new CharSequence on every call, so compare contents.
+         */
+        private fun getText(text: Int, source: CharSequence): String {
+            if (!TextUtils.equals(source, texts[text])) {
+                texts[text] = source.toString()
+            }
+            return texts[text]!!
+        }
+
         private fun drawMultiLineText(str: String, x: Float, y: Float, paint: Paint, canvas: Canvas) {
             val lines = str.split("\n".toRegex()).dropLastWhile { it.isEmpty() }.toTypedArray()
             var txtSize = -paint.ascent() + paint.descent()
@@ -944,14 +1326,84 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
             if (visible) {
                 registerReceiver()
                 /* Update time zone in case it changed while we weren't visible. */
-                calendar.timeZone = TimeZone.getDefault()
-                invalidate()
+                updateTimeZone()
+                onInput(INVALIDATE_REASON_VISIBILITY)
             } else {
                 unregisterReceiver()
+                updateTimeHandler.removeMessages(MSG_INVALIDATE)
+                invalidationCoalescer.reset()
+                if (BuildConfig.DEBUG) {
+                    logStats()
+                }
             }
 
             /* Check and trigger whether or not timer should be running (only in active mode). */
             updateTimer()
+            scheduleComplicationWakeup()
+        }
+
+        /**
+         * Follows the default time zone. If it changed, the complication layers are redrawn too,
+         * since time-dependent text in them reads differently in the new zone.
+         */
+        private fun updateTimeZone() {
+            val timeZone = TimeZone.getDefault()
+            time.setTimeZone(timeZone)
+            if (timeZone.id != timeZoneId) {
+                timeZoneId = timeZone.id
+                complicationLayerCache.invalidateAll()
+            }
+        }
+
+        /**
+         * Logs what the caches, frame scheduler and invalidation coalescer counted since the
+         * engine was created. Debug builds only.
+         */
+        private fun logStats() {
+            Log.d(TAG, "Composite frame cache hits: ${compositeFrameCache.hitCount} " +
+                    "rebuilds: ${compositeFrameCache.rebuildCount}")
+            Log.d(TAG, "Complication layer hits: ${complicationLayerCache.hitCount} " +
+                    "redraws: ${complicationLayerCache.redrawCount} " +
+                    "duplicate updates: ${complicationLayerCache.duplicateDataCount}")
+            Log.d(TAG, "Complication image hits: ${ComplicationImageCache.hitCount} " +
+                    "decodes: ${ComplicationImageCache.decodeCount} " +
+                    "evictions: ${ComplicationImageCache.evictionCount}")
+            Log.d(TAG, "Second hand fps: ${frameScheduler.achievedFps} of " +
+                    "${analogWatchFaceStyle.watchFaceStyle.secondHandFps}, " +
+                    "skipped slots: ${frameScheduler.skippedSlotCount}")
+            Log.d(TAG, "Frame deviation p50/p90/p99 (ms), scheduled: " +
+                    "${getDeviationPercentiles(DEVIATION_SCHEDULED)}, draw start: " +
+                    "${getDeviationPercentiles(DEVIATION_DRAW_START)}, frame end: " +
+                    "${getDeviationPercentiles(DEVIATION_FRAME_END)}, " +
+                    "draw latency: ${frameScheduler.drawLatencyMs}ms")
+            Log.d(TAG, "Invalidations: ${invalidationCoalescer.invalidationCount}, " +
+                    "merged: ${invalidationCoalescer.mergedCount}, frames by reason: " +
+                    "second hand ${getFrameCount(INVALIDATE_REASON_SECOND_HAND)}, " +
+                    "time tick ${getFrameCount(INVALIDATE_REASON_TIME_TICK)}, " +
+                    "complications ${getFrameCount(INVALIDATE_REASON_COMPLICATION_DATA)}, " +
+                    "unread ${getFrameCount(INVALIDATE_REASON_UNREAD_COUNT)}, " +
+                    "time zone ${getFrameCount(INVALIDATE_REASON_TIME_ZONE)}, " +
+                    "mute ${getFrameCount(INVALIDATE_REASON_MUTE)}, " +
+                    "quality ${getFrameCount(INVALIDATE_REASON_QUALITY)}, " +
+                    "visibility ${getFrameCount(INVALIDATE_REASON_VISIBILITY)}, " +
+                    "complication text ${getFrameCount(INVALIDATE_REASON_COMPLICATION_TEXT)}")
+            val hours = (SystemClock.elapsedRealtime() - createdRealtimeMs) /
+                    DateUtils.HOUR_IN_MILLIS.toFloat()
+            Log.d(TAG, "Complication wake-ups: $wakeupCount, redrew: $wakeupRedrawCount, " +
+                    "per hour: ${if (hours > 0f) wakeupCount / hours else 0f}")
+            Log.d(TAG, "Layers dirtied by input:\n${layerDependencies.dump()}")
+            Log.d(TAG, "Quality tier: ${qualityGovernor.tier}, " +
+                    "average frame time: ${qualityGovernor.getAverageFrameTimeMs()}ms")
+        }
+
+        private fun getFrameCount(reason: Int): Long {
+            return invalidationCoalescer.getFrameCount(reason)
+        }
+
+        private fun getDeviationPercentiles(deviation: Int): String {
+            return "${frameScheduler.getDeviationPercentileMs(deviation, 50)}/" +
+                    "${frameScheduler.getDeviationPercentileMs(deviation, 90)}/" +
+                    "${frameScheduler.getDeviationPercentileMs(deviation, 99)}"
         }
 
         private fun registerReceiver() {
@@ -961,6 +1413,11 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
             registeredTimeZoneReceiver = true
             val filter = IntentFilter(Intent.ACTION_TIMEZONE_CHANGED)
             this@AbstractKotlinWatchFace.registerReceiver(timeZoneReceiver, filter)
+
+            val batteryFilter = IntentFilter(Intent.ACTION_BATTERY_CHANGED)
+            batteryFilter.addAction(PowerManager.ACTION_POWER_SAVE_MODE_CHANGED)
+            updateBatteryState(
+                    this@AbstractKotlinWatchFace.registerReceiver(batteryReceiver, batteryFilter))
         }
 
         private fun unregisterReceiver() {
@@ -969,6 +1426,7 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
             }
             registeredTimeZoneReceiver = false
             this@AbstractKotlinWatchFace.unregisterReceiver(timeZoneReceiver)
+            this@AbstractKotlinWatchFace.unregisterReceiver(batteryReceiver)
         }
 
         /**
@@ -976,6 +1434,7 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
          */
         private fun updateTimer() {
             updateTimeHandler.removeMessages(MSG_UPDATE_TIME)
+            frameScheduler.reset()
             if (shouldTimerBeRunning()) {
                 updateTimeHandler.sendEmptyMessage(MSG_UPDATE_TIME)
             }
@@ -990,49 +1449,58 @@ abstract class AbstractKotlinWatchFace : CanvasWatchFaceService() {
         }
 
         /**
-         * Handle updating the time periodically in interactive mode.
+         * Handle updating the time periodically in interactive mode. Frames are scheduled on the
+         * slots of the style's second hand frame rate, early by the time a frame takes to be
+         * drawn; everything but the second hand comes from the cached composite frame, so each
+         * sweep frame is cheap.
          */
         fun handleUpdateTimeMessage() {
-            invalidate()
+            frameScheduler.onTick(System.currentTimeMillis())
+            onInput(INVALIDATE_REASON_SECOND_HAND)
             if (shouldTimerBeRunning()) {
                 val timeMs = System.currentTimeMillis()
-                val delayMs = INTERACTIVE_UPDATE_RATE_MS - timeMs % INTERACTIVE_UPDATE_RATE_MS
+                val delayMs = frameScheduler.getDelayToNextFrame(timeMs)
                 updateTimeHandler.sendEmptyMessageDelayed(MSG_UPDATE_TIME, delayMs)
             }
         }
 
-        private fun getBitmapFromVectorDrawable(drawable: Drawable?, width: Float, height: Float, highlight: Boolean): Bitmap {
-            val widthInt = (width/1.25f).toInt()
-            val heightInt = (height/1.25f).toInt()
-            val bitmap = Bitmap.createBitmap(widthInt, heightInt, Bitmap.Config.ARGB_8888)
-            val canvas = Canvas(bitmap)
+        /**
+         * Marks the layers [input] affects dirty and requests a frame for them. Inputs that no
+         * layer depends on draw nothing. The dirty layers only decide whether a frame is drawn
+         * and whether the composite frame is rebuilt; the dial and complication layer caches
+         * are invalidated by whoever changes what they hold, and otherwise find stale layers
+         * themselves.
+         */
+        private fun onInput(input: Int, complicationSlot: Int = -1) {
+            val layers = layerDependencies.markDirty(input, complicationSlot)
+            if (layers == 0) {
+                return
+            }
+            if (layers and COMPOSITE_LAYERS != 0) {
+                compositeFrameCache.invalidate()
+            }
+            requestInvalidate(input)
+        }
+
+        /**
+         * Requests a frame for [reason] through the invalidation coalescer, which either
+         * invalidates now, merges it into a frame already on its way or holds it back until the
+         * window since the last frame has passed.
+         */
+        private fun requestInvalidate(reason: Int) {
+            val delayMs = invalidationCoalescer.request(reason, SystemClock.uptimeMillis())
+            if (delayMs == 0L) {
+                updateTimeHandler.removeMessages(MSG_INVALIDATE)
+                invalidate()
+            } else if (delayMs > 0L) {
+                updateTimeHandler.sendEmptyMessageDelayed(MSG_INVALIDATE, delayMs)
+            }
+        }
 
-            if (drawable != null) {
-                drawable.setBounds(0, 0, widthInt, heightInt)
-                drawable.colorFilter = PorterDuffColorFilter(hourPaint.color, PorterDuff.Mode.SRC_IN)
-                drawable.draw(canvas)
+        fun handleInvalidateMessage() {
+            if (invalidationCoalescer.flush(SystemClock.uptimeMillis())) {
+                invalidate()
             }
-            return if (highlight)
-                doHighlightImage(bitmap)
-            else
-                bitmap
-        }
-
-        private fun doHighlightImage(src: Bitmap): Bitmap {
-            val bmOut = Bitmap.createBitmap(src.width + 96,
-                    src.height + 96, Bitmap.Config.ARGB_8888)
-            val canvas = Canvas(bmOut)
-            canvas.drawColor(0, PorterDuff.Mode.CLEAR)
-            val ptBlur = Paint()
-            ptBlur.maskFilter = BlurMaskFilter(8f, BlurMaskFilter.Blur.NORMAL)
-            val offsetXY = IntArray(2)
-            val bmAlpha = src.extractAlpha(ptBlur, offsetXY)
-            val ptAlphaColor = Paint()
-            ptAlphaColor.color = Color.BLACK
-            canvas.drawBitmap(bmAlpha, (offsetXY[0] + 43).toFloat(), (offsetXY[1] + 43).toFloat(), ptAlphaColor)
-            bmAlpha.recycle()
-            canvas.drawBitmap(src, 43f, 43f, null)
-            return bmOut
         }
     }
 }
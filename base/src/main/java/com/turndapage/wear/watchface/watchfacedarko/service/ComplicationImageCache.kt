@@ -0,0 +1,197 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.ColorFilter
+import android.graphics.ColorMatrixColorFilter
+import android.graphics.Paint
+import android.graphics.drawable.Icon
+import android.os.Parcel
+import android.util.LruCache
+import java.security.MessageDigest
+import java.util.Arrays
+
+/**
+ * Bytes of decoded images (and their keys) kept by [ComplicationImageCache] before the least
+ * recently used ones are dropped.
+ */
+private const val IMAGE_CACHE_BYTES = 2 * 1024 * 1024
+
+/**
+ * Grays out complication images in ambient mode, lifted a little so dark images stay visible.
+ */
+private val AMBIENT_IMAGE_MATRIX = floatArrayOf(
+        0.33f, 0.33f, 0.33f, 0f, 50f,
+        0.33f, 0.33f, 0.33f, 0f, 50f,
+        0.33f, 0.33f, 0.33f, 0f, 50f,
+        0f, 0f, 0f, 1f, 0f)
+
+/**
+ * A complication image decoded at the size it is drawn at, and an [Icon] wrapping it that can be
+ * handed to a ComplicationDrawable without it decoding anything.
+ */
+class ComplicationImage internal constructor(val bitmap: Bitmap) {
+    val icon: Icon = Icon.createWithBitmap(bitmap)
+}
+
+/**
+ * Identifies an icon by a digest of its marshalled form, which covers the pixels of bitmap icons
+ * and the resource or URI of others. Made once per data update by [ComplicationImageCache.identify]
+ * so that looking the icon up, e.g. on every surface or ambient change, doesn't marshal it again.
+ */
+class IconId internal constructor(private val digest: ByteArray) {
+
+    private val hash = Arrays.hashCode(digest)
+
+    override fun hashCode() = hash
+
+    override fun equals(other: Any?): Boolean {
+        return other is IconId && other.hash == hash && Arrays.equals(other.digest, digest)
+    }
+}
+
+/**
+ * Decoded complication images shared by every slot, engine and face in the process, so a provider
+ * that sends the same icon every minute costs one decode in total instead of one per update.
+ *
+ * Images are keyed by the [IconId] of the icon and the size they are decoded at, so a bitmap
+ * icon sent again with the same pixels hits too. The ambient variant of an image, with
+ * [ambientColorFilter] already applied, is a separate entry made from the interactive one, so
+ * ambient frames don't filter images while drawing.
+ *
+ * Entries are dropped least recently used first once they take more than [IMAGE_CACHE_BYTES];
+ * dropped bitmaps are left to the garbage collector, since a drawable may still be showing them.
+ */
+object ComplicationImageCache {
+
+    /** Number of images served without decoding. */
+    var hitCount: Long = 0
+        private set
+
+    /** Number of images decoded, including ambient variants made from decoded images. */
+    var decodeCount: Long = 0
+        private set
+
+    val evictionCount: Int
+        get() = cache.evictionCount()
+
+    /**
+     * The filter ambient images are stored with, for images drawn without going through the
+     * cache to look the same.
+     */
+    val ambientColorFilter: ColorFilter = ColorMatrixColorFilter(AMBIENT_IMAGE_MATRIX)
+
+    private val cache = object : LruCache<ImageKey, ComplicationImage>(IMAGE_CACHE_BYTES) {
+        override fun sizeOf(key: ImageKey, value: ComplicationImage): Int {
+            return value.bitmap.byteCount
+        }
+    }
+
+    private val ambientPaint = Paint(Paint.FILTER_BITMAP_FLAG).apply {
+        colorFilter = ambientColorFilter
+    }
+
+    private val digest = MessageDigest.getInstance("SHA-1")
+
+    /**
+     * Returns the id [icon] is cached by, or null if it can't be marshalled, e.g. a large bitmap
+     * passed as a file descriptor, in which case it has to be drawn as is. Called on the main
+     * thread.
+     */
+    fun identify(icon: Icon): IconId? {
+        val parcel = Parcel.obtain()
+        try {
+            icon.writeToParcel(parcel, 0)
+            return IconId(digest.digest(parcel.marshall()))
+        } catch (e: RuntimeException) {
+            return null
+        } finally {
+            parcel.recycle()
+        }
+    }
+
+    /**
+     * Returns [icon], identified by [iconId], decoded to fit [width] x [height], keeping its
+     * aspect ratio, with [ambientColorFilter] applied if [ambient]. Returns null if the icon
+     * can't be loaded. Called on the main thread.
+     */
+    fun get(context: Context, icon: Icon, iconId: IconId, width: Int, height: Int,
+            ambient: Boolean): ComplicationImage? {
+        val key = ImageKey(iconId, width, height, ambient)
+        val cached = cache.get(key)
+        if (cached != null) {
+            hitCount++
+            return cached
+        }
+
+        val image = if (ambient) {
+            val source = get(context, icon, iconId, width, height, false) ?: return null
+            makeAmbient(source.bitmap)
+        } else {
+            decode(context, icon, width, height) ?: return null
+        }
+        decodeCount++
+        cache.put(key, image)
+        return image
+    }
+
+    private fun decode(context: Context, icon: Icon, width: Int, height: Int): ComplicationImage? {
+        val drawable = icon.loadDrawable(context) ?: return null
+        var imageWidth = width
+        var imageHeight = height
+        if (drawable.intrinsicWidth > 0 && drawable.intrinsicHeight > 0) {
+            val scale = Math.min(width.toFloat() / drawable.intrinsicWidth,
+                    height.toFloat() / drawable.intrinsicHeight)
+            imageWidth = Math.max(Math.round(drawable.intrinsicWidth * scale), 1)
+            imageHeight = Math.max(Math.round(drawable.intrinsicHeight * scale), 1)
+        }
+        val bitmap = Bitmap.createBitmap(imageWidth, imageHeight, Bitmap.Config.ARGB_8888)
+        drawable.setBounds(0, 0, imageWidth, imageHeight)
+        drawable.draw(Canvas(bitmap))
+        return ComplicationImage(bitmap)
+    }
+
+    private fun makeAmbient(source: Bitmap): ComplicationImage {
+        val bitmap = Bitmap.createBitmap(source.width, source.height, Bitmap.Config.ARGB_8888)
+        Canvas(bitmap).drawBitmap(source, 0f, 0f, ambientPaint)
+        return ComplicationImage(bitmap)
+    }
+
+    /**
+     * An icon at the size it is decoded at.
+     */
+    private class ImageKey(
+            val iconId: IconId,
+            val width: Int,
+            val height: Int,
+            val ambient: Boolean) {
+
+        private val hash = ((iconId.hashCode() * 31 + width) * 31 + height) * 31 +
+                if (ambient) 1 else 0
+
+        override fun hashCode() = hash
+
+        override fun equals(other: Any?): Boolean {
+            return other is ImageKey && other.hash == hash && other.width == width &&
+                    other.height == height && other.ambient == ambient &&
+                    other.iconId == iconId
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Rect
+import android.os.Parcel
+import android.support.wearable.complications.ComplicationData
+import android.support.wearable.complications.ComplicationText
+import android.text.format.DateUtils
+import java.util.Arrays
+
+/**
+ * How far ahead [ComplicationLayerCache.getNextChangeTimeMs] looks for a text change.
+ */
+private const val WAKEUP_HORIZON_MS = DateUtils.MINUTE_IN_MILLIS
+
+/**
+ * Holds each complication slot rendered into a bitmap of its own, so a frame whose complications
+ * haven't changed blits them instead of having ComplicationDrawable lay out text, icons and
+ * ranged value arcs again.
+ *
+ * A slot's layer is kept until its data changes ([setData]), it is wanted for another palette,
+ * [invalidate] is called (e.g. the bounds changed), or time-dependent text in its data reads
+ * differently than when the layer was drawn. Data identical to what the slot already has is
+ * recognized and doesn't count as a change. All methods are called on the main thread.
+ */
+class ComplicationLayerCache(slotCount: Int) {
+
+    /** Number of slot draws served from a cached layer. */
+    var hitCount: Long = 0
+        private set
+
+    /** Number of times a slot layer had to be redrawn. */
+    var redrawCount: Long = 0
+        private set
+
+    /** Number of data updates dropped because they were identical to the slot's data. */
+    var duplicateDataCount: Long = 0
+        private set
+
+    private val data = arrayOfNulls<ComplicationData>(slotCount)
+    private val dataBytes = arrayOfNulls<ByteArray>(slotCount)
+    private val dataVersions = IntArray(slotCount)
+
+    private val layers = arrayOfNulls<Bitmap>(slotCount)
+    private val layerBounds = Array(slotCount) { Rect() }
+    /* What each layer was drawn from, or -1 palette if it has to be redrawn. */
+    private val layerPalettes = IntArray(slotCount) { -1 }
+    private val layerVersions = IntArray(slotCount)
+    private val layerTimesMs = LongArray(slotCount)
+
+    private val canvas = Canvas()
+
+    /**
+     * Sets the data of [slot]. Returns false if it is identical to the data the slot already has,
+     * in which case nothing needs to be redrawn.
+     */
+    fun setData(slot: Int, newData: ComplicationData?): Boolean {
+        val bytes = marshall(newData)
+        val identical = if (newData == null)
+            data[slot] == null
+        else
+            bytes != null && Arrays.equals(bytes, dataBytes[slot])
+        if (identical) {
+            duplicateDataCount++
+            return false
+        }
+        data[slot] = newData
+        dataBytes[slot] = bytes
+        dataVersions[slot]++
+        return true
+    }
+
+    /**
+     * Returns the layer of [slot] if it is still valid for [palette] at [timeMs], or null if it
+     * has to be redrawn.
+     */
+    fun get(slot: Int, palette: Int, timeMs: Long): Bitmap? {
+        val layer = layers[slot]
+        if (layer == null || layerPalettes[slot] != palette ||
+                layerVersions[slot] != dataVersions[slot] ||
+                isTextChanged(data[slot], layerTimesMs[slot], timeMs)) {
+            return null
+        }
+        hitCount++
+        return layer
+    }
+
+    /**
+     * Returns whether the layer of [slot] shows text that reads differently at [timeMs], so
+     * redrawing it would change what is shown. A slot without a layer has nothing to update.
+     */
+    fun isTextChanged(slot: Int, timeMs: Long): Boolean {
+        return layers[slot] != null && isTextChanged(data[slot], layerTimesMs[slot], timeMs)
+    }
+
+    /**
+     * Returns the first instant after [timeMs], within [WAKEUP_HORIZON_MS], at which the text
+     * of [slot] reads differently than at [timeMs], or Long.MAX_VALUE if it doesn't change in
+     * that time. Changes further out are found by asking again later, e.g. on the next time
+     * tick.
+     */
+    fun getNextChangeTimeMs(slot: Int, timeMs: Long): Long {
+        val slotData = data[slot] ?: return Long.MAX_VALUE
+        var unchangedMs = timeMs
+        var changedMs = timeMs + WAKEUP_HORIZON_MS
+        if (!isTextChanged(slotData, timeMs, changedMs)) {
+            return Long.MAX_VALUE
+        }
+        // Text only changes forward in steps, so the first change can be bisected.
+        while (changedMs - unchangedMs > 1) {
+            val middleMs = unchangedMs + (changedMs - unchangedMs) / 2
+            if (isTextChanged(slotData, timeMs, middleMs)) {
+                changedMs = middleMs
+            } else {
+                unchangedMs = middleMs
+            }
+        }
+        return changedMs
+    }
+
+    /**
+     * Returns where the layer of [slot] goes on the surface.
+     */
+    fun getBounds(slot: Int): Rect {
+        return layerBounds[slot]
+    }
+
+    /**
+     * Returns a cleared canvas to redraw [slot] on, for [palette] at [timeMs]. The canvas is in
+     * surface coordinates and clipped to [bounds], which the layer covers; call [endRedraw] when
+     * done.
+     */
+    fun beginRedraw(slot: Int, palette: Int, bounds: Rect, timeMs: Long): Canvas {
+        var layer = layers[slot]
+        val width = Math.max(bounds.width(), 1)
+        val height = Math.max(bounds.height(), 1)
+        if (layer == null || layer.width != width || layer.height != height) {
+            layer?.recycle()
+            layer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+            layers[slot] = layer
+        } else {
+            layer.eraseColor(Color.TRANSPARENT)
+        }
+        layerBounds[slot].set(bounds)
+        layerPalettes[slot] = palette
+        layerVersions[slot] = dataVersions[slot]
+        layerTimesMs[slot] = timeMs
+        redrawCount++
+
+        canvas.setBitmap(layer)
+        canvas.translate(-bounds.left.toFloat(), -bounds.top.toFloat())
+        return canvas
+    }
+
+    /**
+     * Returns the layer redrawn since [beginRedraw].
+     */
+    fun endRedraw(slot: Int): Bitmap {
+        canvas.setBitmap(null)
+        return layers[slot] ?: throw IllegalStateException("Slot $slot was never redrawn.")
+    }
+
+    /**
+     * Marks the layer of [slot] stale, e.g. to show a tap highlight.
+     */
+    fun invalidate(slot: Int) {
+        layerPalettes[slot] = -1
+    }
+
+    /**
+     * Marks every layer stale, e.g. when the bounds change. The bitmaps are reused if the size
+     * stays the same.
+     */
+    fun invalidateAll() {
+        for (i in layerPalettes.indices) {
+            layerPalettes[i] = -1
+        }
+    }
+
+    fun release() {
+        for (i in layers.indices) {
+            layers[i]?.recycle()
+            layers[i] = null
+            layerPalettes[i] = -1
+        }
+    }
+
+    /**
+     * Returns whether any text drawn from [data] reads differently at [toMs] than at [fromMs],
+     * e.g. a countdown, or the data became active or inactive in between.
+     */
+    private fun isTextChanged(data: ComplicationData?, fromMs: Long, toMs: Long): Boolean {
+        if (data == null) {
+            return false
+        }
+        return data.isActive(fromMs) != data.isActive(toMs) ||
+                isTextChanged(data.shortText, fromMs, toMs) ||
+                isTextChanged(data.shortTitle, fromMs, toMs) ||
+                isTextChanged(data.longText, fromMs, toMs) ||
+                isTextChanged(data.longTitle, fromMs, toMs)
+    }
+
+    private fun isTextChanged(text: ComplicationText?, fromMs: Long, toMs: Long): Boolean {
+        return text != null && !text.returnsSameText(fromMs, toMs)
+    }
+
+    /**
+     * Returns the parcelled bytes of [data] to compare it by, or null if it can't be flattened
+     * (e.g. it holds an image in shared memory) and has to be taken as changed.
+     */
+    private fun marshall(data: ComplicationData?): ByteArray? {
+        if (data == null) {
+            return null
+        }
+        val parcel = Parcel.obtain()
+        try {
+            data.writeToParcel(parcel, 0)
+            return parcel.marshall()
+        } catch (e: RuntimeException) {
+            return null
+        } finally {
+            parcel.recycle()
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.graphics.Rect
+import com.turndapage.wear.watchface.watchfacedarko.model.AnalogWatchFaceStyle
+import com.turndapage.wear.watchface.watchfacedarko.model.WatchFaceComplication
+import kotlin.math.roundToInt
+
+/**
+ * Id of the first complication in the style; the complication at index i has id
+ * FIRST_COMPLICATION_ID + i. Providers the user picked are saved by id, so ids must never change.
+ */
+const val FIRST_COMPLICATION_ID = 101
+
+/**
+ * Most complications a style can define: the config screen has a button for this many, for the
+ * ids from FIRST_COMPLICATION_ID on.
+ */
+const val MAX_STYLE_COMPLICATIONS = 3
+
+/**
+ * Most complication slots a face can have on screen. Hit grid cells and LayerDependencies keep
+ * slots as bits of an Int, where the dial and hands already take three layer bits.
+ */
+const val MAX_COMPLICATION_SLOTS = 29
+
+/**
+ * Side in pixels of a hit grid cell.
+ */
+private const val HIT_CELL_SIZE = 16
+
+/**
+ * The complications of a style that have any area on screen, as parallel arrays indexed by slot.
+ * Complications without area are left out entirely, so nothing is created or iterated for them.
+ *
+ * Taps are resolved through a grid over the surface whose cells hold a bit mask of the slots
+ * overlapping them, so a tap only checks the few slots under it.
+ */
+class ComplicationSlots(style: AnalogWatchFaceStyle) {
+
+    /** Number of slots. */
+    val count: Int
+
+    /** Complication id of each slot. */
+    val ids: IntArray
+
+    /** Complication of the style each slot was made from. */
+    val complications: Array<WatchFaceComplication>
+
+    private val widthRatios: FloatArray
+    private val heightRatios: FloatArray
+    private val xPositions: FloatArray
+    private val yPositions: FloatArray
+
+    /* Bounds of each slot on the surface, set by layout. */
+    private val lefts: IntArray
+    private val tops: IntArray
+    private val rights: IntArray
+    private val bottoms: IntArray
+
+    private var gridColumns: Int = 0
+    private var gridRows: Int = 0
+    private var hitGrid = IntArray(0)
+
+    init {
+        val styleIndices = ArrayList<Int>()
+        for (i in style.watchFaceComplications.indices) {
+            if (isOnScreen(style.watchFaceComplications[i])) {
+                styleIndices.add(i)
+            }
+        }
+        if (styleIndices.size > MAX_COMPLICATION_SLOTS) {
+            throw IllegalStateException(
+                    "At most $MAX_COMPLICATION_SLOTS complications can be on screen.")
+        }
+
+        count = styleIndices.size
+        ids = IntArray(count) { FIRST_COMPLICATION_ID + styleIndices[it] }
+        complications = Array(count) { style.watchFaceComplications[styleIndices[it]] }
+        widthRatios = FloatArray(count) { complications[it].widthRatio }
+        heightRatios = FloatArray(count) { complications[it].heightRatio }
+        xPositions = FloatArray(count) { complications[it].xPos }
+        yPositions = FloatArray(count) { complications[it].yPos }
+        lefts = IntArray(count)
+        tops = IntArray(count)
+        rights = IntArray(count)
+        bottoms = IntArray(count)
+    }
+
+    /**
+     * Works out the bounds of every slot and the hit grid for a [width] x [height] surface.
+     */
+    fun layout(width: Int, height: Int) {
+        for (slot in 0 until count) {
+            val slotWidth = width * widthRatios[slot]
+            val slotHeight = height * heightRatios[slot]
+            val left = width * xPositions[slot] - slotWidth / 2
+            val top = height * yPositions[slot] - slotHeight / 2
+            lefts[slot] = left.roundToInt()
+            tops[slot] = top.roundToInt()
+            rights[slot] = (left + slotWidth).roundToInt()
+            bottoms[slot] = (top + slotHeight).roundToInt()
+        }
+
+        gridColumns = (width + HIT_CELL_SIZE - 1) / HIT_CELL_SIZE
+        gridRows = (height + HIT_CELL_SIZE - 1) / HIT_CELL_SIZE
+        hitGrid = IntArray(gridColumns * gridRows)
+        for (slot in 0 until count) {
+            val firstColumn = clamp(lefts[slot] / HIT_CELL_SIZE, gridColumns)
+            val lastColumn = clamp((rights[slot] - 1) / HIT_CELL_SIZE, gridColumns)
+            val firstRow = clamp(tops[slot] / HIT_CELL_SIZE, gridRows)
+            val lastRow = clamp((bottoms[slot] - 1) / HIT_CELL_SIZE, gridRows)
+            for (row in firstRow..lastRow) {
+                for (column in firstColumn..lastColumn) {
+                    hitGrid[row * gridColumns + column] =
+                            hitGrid[row * gridColumns + column] or (1 shl slot)
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets [outBounds] to the bounds of [slot] on the surface.
+     */
+    fun getBounds(slot: Int, outBounds: Rect) {
+        outBounds.set(lefts[slot], tops[slot], rights[slot], bottoms[slot])
+    }
+
+    /**
+     * Returns a bit mask of the slots whose bounds contain ([x], [y]); bit i is slot i.
+     */
+    fun hitTest(x: Int, y: Int): Int {
+        if (x < 0 || y < 0) {
+            return 0
+        }
+        val column = x / HIT_CELL_SIZE
+        val row = y / HIT_CELL_SIZE
+        if (column >= gridColumns || row >= gridRows) {
+            return 0
+        }
+        var hits = hitGrid[row * gridColumns + column]
+        var candidates = hits
+        while (candidates != 0) {
+            val slot = Integer.numberOfTrailingZeros(candidates)
+            candidates = candidates and (1 shl slot).inv()
+            if (x < lefts[slot] || x >= rights[slot] || y < tops[slot] || y >= bottoms[slot]) {
+                hits = hits and (1 shl slot).inv()
+            }
+        }
+        return hits
+    }
+
+    /**
+     * Returns the slot of complication [id], or -1 if it isn't on screen.
+     */
+    fun indexOfId(id: Int): Int {
+        return ids.indexOf(id)
+    }
+
+    private fun clamp(cell: Int, cellCount: Int): Int {
+        return Math.min(Math.max(cell, 0), cellCount - 1)
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+
+/**
+ * Holds a composited frame of everything except the second hand (dial, complications, hour and
+ * minute hands). The frame is valid for a single minute; anything else that changes its content
+ * must call [invalidate].
+ *
+ * The bitmap is reused between rebuilds so a rebuild doesn't allocate unless the size or config
+ * changes.
+ */
+class CompositeFrameCache {
+
+    /** Number of frames that were served from the cached composite. */
+    var hitCount: Long = 0
+        private set
+
+    /** Number of times the composite had to be redrawn. */
+    var rebuildCount: Long = 0
+        private set
+
+    private var frame: Bitmap? = null
+    private var frameCanvas: Canvas? = null
+    private var frameMinute: Long = -1
+
+    /**
+     * Returns the cached frame if it is still valid for [minute], or null if it has to be rebuilt.
+     */
+    fun get(minute: Long): Bitmap? {
+        val cached = frame
+        if (cached != null && frameMinute == minute) {
+            hitCount++
+            return cached
+        }
+        return null
+    }
+
+    /**
+     * Returns a cleared canvas backed by the frame bitmap, ready to be redrawn for [minute].
+     * Callers must fill the whole canvas before the frame is blitted.
+     */
+    fun beginRebuild(width: Int, height: Int, config: Bitmap.Config, minute: Long): Canvas {
+        var canvas = frameCanvas
+        val cached = frame
+        if (canvas == null || cached == null || cached.width != width ||
+                cached.height != height || cached.config != config) {
+            release()
+            val bitmap = Bitmap.createBitmap(width, height, config)
+            canvas = Canvas(bitmap)
+            frame = bitmap
+            frameCanvas = canvas
+        }
+        rebuildCount++
+        frameMinute = minute
+        return canvas
+    }
+
+    /**
+     * Returns the frame last passed to [beginRebuild].
+     */
+    fun getFrame(): Bitmap {
+        return frame ?: throw IllegalStateException("Frame was never built.")
+    }
+
+    /**
+     * Marks the cached frame stale so the next frame rebuilds it.
+     */
+    fun invalidate() {
+        frameMinute = -1
+    }
+
+    /**
+     * Frees the frame bitmap, e.g. when the surface size changes.
+     */
+    fun release() {
+        frame?.recycle()
+        frame = null
+        frameCanvas = null
+        frameMinute = -1
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.graphics.Paint
+import android.graphics.Rect
+import android.graphics.drawable.Drawable
+import com.turndapage.wear.watchface.watchfacedarko.model.AnalogWatchFaceStyle
+
+/**
+ * Number of hour ticks drawn around the dial.
+ */
+private const val TICK_COUNT = 12
+
+/**
+ * Length in pixels of the hour ticks, measured inwards from the edge of the screen.
+ */
+private const val TICK_LENGTH = 10f
+
+/**
+ * Distance in pixels between the numerals and the edge of the screen.
+ */
+private const val NUMERAL_OFFSET = 12f
+
+/**
+ * All positions on the dial that only depend on the surface size and the style, worked out once
+ * per surface change so drawing a frame needs no trigonometry or text measurement:
+ * - tickLines - endpoints of every tick as (x0, y0, x1, y1) quads for Canvas.drawLines.
+ * - numeralText/numeralX/numeralY - the visible numerals and their baselines; the first
+ *   numeralCount entries are valid.
+ * - armStartY - where every hand starts, just outside the inner circle.
+ * - hour/minute/secondHandEndY - tip of each line hand when pointing at 12.
+ * - hour/minuteHandBounds - bounds of the drawable hands when pointing at 12.
+ */
+class DialGeometry(
+        width: Int,
+        height: Int,
+        style: AnalogWatchFaceStyle,
+        numeralPaint: Paint,
+        hourHandDrawable: Drawable?,
+        minuteHandDrawable: Drawable?) {
+
+    /*
+     * Find the coordinates of the center point on the screen, and ignore the window
+     * insets, so that, on round watches with a "chin", the watch face is centered on the
+     * entire screen, not just the usable portion.
+     */
+    val centerX: Float = width / 2f
+    val centerY: Float = height / 2f
+
+    val tickLines = FloatArray(TICK_COUNT * 4)
+
+    val numeralText = arrayOfNulls<String>(4)
+    val numeralX = FloatArray(4)
+    val numeralY = FloatArray(4)
+    var numeralCount = 0
+        private set
+
+    val armStartY: Float
+    val hourHandEndY: Float
+    val minuteHandEndY: Float
+    val secondHandEndY: Float
+
+    val hourHandBounds = Rect()
+    val minuteHandBounds = Rect()
+
+    init {
+        val innerTickRadius = centerX - TICK_LENGTH
+        val outerTickRadius = centerX
+        for (tickIndex in 0 until TICK_COUNT) {
+            val tickRot = tickIndex.toDouble() * Math.PI * 2.0 / TICK_COUNT
+            val sin = Math.sin(tickRot).toFloat()
+            val cos = -Math.cos(tickRot).toFloat()
+            tickLines[tickIndex * 4] = centerX + sin * innerTickRadius
+            tickLines[tickIndex * 4 + 1] = centerY + cos * innerTickRadius
+            tickLines[tickIndex * 4 + 2] = centerX + sin * outerTickRadius
+            tickLines[tickIndex * 4 + 3] = centerY + cos * outerTickRadius
+        }
+
+        val textBounds = Rect()
+        numeralPaint.getTextBounds("3", 0, 1, textBounds)
+        val textWidth = textBounds.width().toFloat()
+        val textHeight = textBounds.height().toFloat()
+        numeralPaint.getTextBounds("12", 0, 2, textBounds)
+        val topOffset = (textBounds.width() / 2).toFloat()
+
+        if (style.watchFaceStyle.topNumber)
+            addNumeral("12", centerX - topOffset, textHeight + NUMERAL_OFFSET)
+        if (style.watchFaceStyle.rightNumber)
+            addNumeral("3", width - textWidth - NUMERAL_OFFSET, centerY + textHeight / 2)
+        if (style.watchFaceStyle.bottomNumber)
+            addNumeral("6", centerX - textWidth / 2, height - NUMERAL_OFFSET)
+        if (style.watchFaceStyle.leftNumber)
+            addNumeral("9", NUMERAL_OFFSET, centerY + textHeight / 2)
+
+        val dimensions = style.watchFaceDimensions
+        armStartY = centerY - (dimensions.innerCircleRadius + dimensions.innerCircleToArmsDistance)
+
+        /*
+         * Calculate lengths of different hands based on watch screen size.
+         */
+        hourHandEndY = centerY - centerX * dimensions.hourHandRadiusRatio
+        minuteHandEndY = centerY - centerX * dimensions.minuteHandRadiusRatio
+        secondHandEndY = centerY - centerX * dimensions.secondHandRadiusRatio
+
+        if (hourHandDrawable != null) {
+            setHandBounds(hourHandBounds, hourHandDrawable, style.watchFaceHourHand.offset,
+                    width * dimensions.hourHandRadiusRatio)
+        }
+        if (minuteHandDrawable != null) {
+            setHandBounds(minuteHandBounds, minuteHandDrawable, style.watchFaceMinuteHand.offset,
+                    width * dimensions.minuteHandRadiusRatio)
+        }
+    }
+
+    private fun addNumeral(text: String, x: Float, y: Float) {
+        numeralText[numeralCount] = text
+        numeralX[numeralCount] = x
+        numeralY[numeralCount] = y
+        numeralCount++
+    }
+
+    /**
+     * Sizes a drawable hand relative to [length] and centers it on the pivot, [offset] of its
+     * height up from the bottom, pointing at 12.
+     */
+    private fun setHandBounds(bounds: Rect, drawable: Drawable, offset: Float, length: Float) {
+        val dWidth = drawable.intrinsicWidth
+        val dHeight = drawable.intrinsicHeight
+
+        val outHeight = dHeight - dHeight * offset
+        val scale = outHeight / length
+
+        val handWidth = dWidth * scale
+        val handHeight = dHeight * scale
+        val handOffset = handHeight * offset
+
+        bounds.set(
+                (centerX - (handWidth / 2)).toInt(),
+                (centerY - handHeight + handOffset).toInt(),
+                (centerX + (handWidth / 2)).toInt(),
+                (centerY + handOffset).toInt())
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.graphics.Bitmap
+
+/**
+ * Render modes that cached layers are keyed by:
+ * - RENDER_MODE_INTERACTIVE - full color, anti-aliased, shadowed.
+ * - RENDER_MODE_AMBIENT - gray background, no anti-aliasing or shadows.
+ * - RENDER_MODE_LOW_BIT_AMBIENT - ambient on low-bit or burn-in protected screens (no image).
+ */
+const val RENDER_MODE_INTERACTIVE = 0
+const val RENDER_MODE_AMBIENT = 1
+const val RENDER_MODE_LOW_BIT_AMBIENT = 2
+const val RENDER_MODE_COUNT = 3
+
+/**
+ * Holds one pre-composed bitmap per render mode for the parts of the dial that never change
+ * between frames (background, ticks and numerals).
+ *
+ * Layers are double buffered: [invalidate] only marks the front layers stale, so they can still
+ * be drawn while a new back layer is composed on the render thread, and [put] swaps the new layer
+ * in once it is done. Layers composed before the last [invalidate] are dropped. All methods are
+ * called on the main thread.
+ */
+class DialLayerCache {
+
+    private val layers = arrayOfNulls<Bitmap>(RENDER_MODE_COUNT)
+    private val stale = BooleanArray(RENDER_MODE_COUNT)
+    private val requested = BooleanArray(RENDER_MODE_COUNT)
+
+    /** Incremented by every [invalidate], to tell layers composed before it apart. */
+    var generation: Int = 0
+        private set
+
+    /**
+     * Returns the front layer for [renderMode], which may be stale, or null if there is none.
+     */
+    fun get(renderMode: Int): Bitmap? {
+        return layers[renderMode]
+    }
+
+    /**
+     * Returns whether a new layer should be requested for [renderMode]: it is missing or stale
+     * and not already being composed.
+     */
+    fun needsRequest(renderMode: Int): Boolean {
+        return (layers[renderMode] == null || stale[renderMode]) && !requested[renderMode]
+    }
+
+    fun markRequested(renderMode: Int) {
+        requested[renderMode] = true
+    }
+
+    /**
+     * Swaps in [layer], composed at [layerGeneration], as the front layer for [renderMode].
+     * Returns false, and recycles [layer], if it was composed before the last [invalidate].
+     */
+    fun put(renderMode: Int, layer: Bitmap, layerGeneration: Int): Boolean {
+        if (layerGeneration != generation) {
+            layer.recycle()
+            return false
+        }
+        layers[renderMode]?.recycle()
+        layers[renderMode] = layer
+        stale[renderMode] = false
+        requested[renderMode] = false
+        return true
+    }
+
+    /**
+     * Marks every layer stale. They are kept for drawing until replaced.
+     */
+    fun invalidate() {
+        generation++
+        for (i in layers.indices) {
+            stale[i] = true
+            requested[i] = false
+        }
+    }
+
+    fun release() {
+        invalidate()
+        for (i in layers.indices) {
+            layers[i]?.recycle()
+            layers[i] = null
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Color
+import android.graphics.Paint
+import android.graphics.Rect
+import java.nio.ByteBuffer
+
+/**
+ * 4x4 Bayer matrix the ordered dither thresholds come from.
+ */
+private val BAYER_MATRIX = intArrayOf(
+        0, 8, 2, 10,
+        12, 4, 14, 6,
+        3, 11, 1, 9,
+        15, 7, 13, 5)
+
+/**
+ * Fraction of the pattern lit where the image is white. At a quarter, even the brightest areas
+ * light one pixel in each 2x2 block and never two neighbours, which keeps burn-in protected
+ * screens happy.
+ */
+private const val MAX_DITHER_DENSITY = 0.25f
+
+/**
+ * Returns [background] scaled to [bounds] as a 1-bit ordered dither: an ALPHA_8 bitmap whose
+ * pixels are either fully opaque or fully transparent, to be drawn 1:1 at the top left of
+ * [bounds] in white, without anti-aliasing or filtering. Brighter areas light more of the
+ * pattern, up to [MAX_DITHER_DENSITY]. Slow; call it on the render thread.
+ */
+fun ditherBackground(background: Bitmap, bounds: Rect): Bitmap {
+    val width = Math.max(bounds.width(), 1)
+    val height = Math.max(bounds.height(), 1)
+    val scaled = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+    Canvas(scaled).drawBitmap(background, null, Rect(0, 0, width, height),
+            Paint(Paint.FILTER_BITMAP_FLAG))
+
+    val dithered = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8)
+    val rowBytes = dithered.rowBytes
+    val buffer = ByteBuffer.allocate(rowBytes * height)
+    val row = IntArray(width)
+    for (y in 0 until height) {
+        scaled.getPixels(row, 0, width, 0, y, width, 1)
+        buffer.position(y * rowBytes)
+        val matrixRow = (y and 3) * 4
+        for (x in 0 until width) {
+            val color = row[x]
+            // Lit if the pixel's share of the pattern is above this cell's threshold.
+            val level = getLuminance(color) * Color.alpha(color) / 255 *
+                    MAX_DITHER_DENSITY * 16 / 255
+            val lit = level > BAYER_MATRIX[matrixRow + (x and 3)] + 0.5f
+            buffer.put(if (lit) 0xFF.toByte() else 0.toByte())
+        }
+    }
+    scaled.recycle()
+
+    buffer.rewind()
+    dithered.copyPixelsFromBuffer(buffer)
+    return dithered
+}
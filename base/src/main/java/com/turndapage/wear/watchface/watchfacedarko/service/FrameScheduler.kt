@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.text.format.DateUtils
+import java.util.Arrays
+
+/**
+ * Points of a scheduled frame whose deviation from the ideal slot boundary is recorded:
+ * - DEVIATION_SCHEDULED - when the update timer fired.
+ * - DEVIATION_DRAW_START - when onDraw started.
+ * - DEVIATION_FRAME_END - when onDraw finished.
+ * Negative deviations are early, positive ones late.
+ */
+const val DEVIATION_SCHEDULED = 0
+const val DEVIATION_DRAW_START = 1
+const val DEVIATION_FRAME_END = 2
+private const val DEVIATION_COUNT = 3
+
+/**
+ * Number of recent frames the deviation percentiles are taken over.
+ */
+private const val DEVIATION_WINDOW = 64
+
+/**
+ * Weight of the newest frame in the smoothed draw latency.
+ */
+private const val LATENCY_SMOOTHING = 0.2f
+
+/**
+ * Decides when the next interactive frame should be drawn for a second hand that updates
+ * [framesPerSecond] times a second. Frames are aligned to fixed slots within each second (so 1 fps
+ * ticks exactly on the second), and if a frame takes longer than a slot the slots it ran into are
+ * skipped rather than queued up.
+ *
+ * The timer is fired early by the smoothed latency between it firing and the frame being
+ * finished, and the frame is drawn for the slot time rather than the time it started, so the
+ * finished frame lands on the boundary instead of a little after it. How far each scheduled frame
+ * actually was from its boundary is recorded, see [getDeviationPercentileMs].
+ *
+ * It also keeps track of the frame rate that was actually achieved. All times are wall clock
+ * milliseconds (System.currentTimeMillis()), the clock the slots are aligned to.
+ */
+class FrameScheduler(framesPerSecond: Int) {
+
+    /** How many frames a second the second hand is updated; can be changed at any time. */
+    var framesPerSecond: Int = framesPerSecond
+        set(value) {
+            field = value
+            frameBudgetMs = DateUtils.SECOND_IN_MILLIS / value
+        }
+
+    /** Time budget of a single frame in milliseconds. */
+    var frameBudgetMs: Long = DateUtils.SECOND_IN_MILLIS / framesPerSecond
+        private set
+
+    /** Frames drawn during the last full second, or 0 before the first second has passed. */
+    var achievedFps: Int = 0
+        private set
+
+    /** Number of frame slots skipped because the frame before them overran its budget. */
+    var skippedSlotCount: Long = 0
+        private set
+
+    /** Smoothed time from the timer firing to the frame being finished. */
+    var drawLatencyMs: Float = 0f
+        private set
+
+    private var frameStartMs: Long = 0
+    private var lastFrameDurationMs: Long = 0
+
+    private var windowStartMs: Long = 0
+    private var windowFrameCount: Int = 0
+
+    /* Boundary of the slot the pending timer was scheduled for, or 0 if none. */
+    private var targetSlotMs: Long = 0
+    /* Time the timer fired for the frame being drawn, or 0 if it wasn't a scheduled frame. */
+    private var tickMs: Long = 0
+
+    private val deviationsMs = Array(DEVIATION_COUNT) { LongArray(DEVIATION_WINDOW) }
+    private var deviationIndex: Int = 0
+    private var deviationCount: Int = 0
+    private val sortedDeviationsMs = LongArray(DEVIATION_WINDOW)
+
+    /**
+     * Call when the update timer fires, before invalidating.
+     */
+    fun onTick(timeMs: Long) {
+        if (targetSlotMs == 0L) {
+            // The first tick after the timer (re)started isn't aimed at a slot.
+            return
+        }
+        tickMs = timeMs
+        deviationsMs[DEVIATION_SCHEDULED][deviationIndex] = timeMs - targetSlotMs
+    }
+
+    /**
+     * Call when a frame starts.
+     */
+    fun onFrameStart(timeMs: Long) {
+        frameStartMs = timeMs
+        if (tickMs != 0L) {
+            deviationsMs[DEVIATION_DRAW_START][deviationIndex] = timeMs - targetSlotMs
+        }
+    }
+
+    /**
+     * Returns the time a frame starting at [timeMs] should show. A scheduled frame that started
+     * ahead of its slot shows the slot time.
+     */
+    fun getFrameTimeMs(timeMs: Long): Long {
+        return if (tickMs != 0L && targetSlotMs > timeMs) targetSlotMs else timeMs
+    }
+
+    /**
+     * Call when a frame ends.
+     */
+    fun onFrameEnd(timeMs: Long) {
+        lastFrameDurationMs = Math.max(timeMs - frameStartMs, 0)
+
+        if (tickMs != 0L) {
+            deviationsMs[DEVIATION_FRAME_END][deviationIndex] = timeMs - targetSlotMs
+            deviationIndex = (deviationIndex + 1) % DEVIATION_WINDOW
+            deviationCount = Math.min(deviationCount + 1, DEVIATION_WINDOW)
+
+            val latencyMs = (timeMs - tickMs).toFloat()
+            drawLatencyMs += (latencyMs - drawLatencyMs) * LATENCY_SMOOTHING
+            tickMs = 0
+        }
+
+        windowFrameCount++
+        if (timeMs < windowStartMs) {
+            // The clock was set back; start counting again.
+            windowStartMs = timeMs
+            windowFrameCount = 0
+        } else if (timeMs - windowStartMs >= DateUtils.SECOND_IN_MILLIS) {
+            achievedFps = if (windowStartMs == 0L) 0 else windowFrameCount
+            windowStartMs = timeMs
+            windowFrameCount = 0
+        }
+    }
+
+    /**
+     * Returns how long to wait from [timeMs] until the timer should fire for the next frame slot.
+     */
+    fun getDelayToNextFrame(timeMs: Long): Long {
+        // A timer fired early is still before the slot it was aimed at, so aim past that one.
+        var earliestMs = Math.max(timeMs, targetSlotMs)
+        if (lastFrameDurationMs > frameBudgetMs) {
+            // The last frame ran into the following slot(s); don't try to catch up on them.
+            earliestMs += lastFrameDurationMs
+            skippedSlotCount += lastFrameDurationMs / frameBudgetMs
+            lastFrameDurationMs = 0
+        }
+
+        // Slots are counted from the start of each second so that they stay aligned with it.
+        val slot = earliestMs * framesPerSecond / DateUtils.SECOND_IN_MILLIS + 1
+        targetSlotMs = slot * DateUtils.SECOND_IN_MILLIS / framesPerSecond
+
+        // Never fire more than half a slot early, however slow frames have been.
+        val compensationMs = Math.min(drawLatencyMs.toLong(), frameBudgetMs / 2)
+        return Math.max(targetSlotMs - compensationMs - timeMs, 0)
+    }
+
+    /**
+     * Returns the [percentile] (0-100) of how far [deviation] (one of the DEVIATION_ constants)
+     * was from the slot boundary over the last [DEVIATION_WINDOW] scheduled frames, or 0 if
+     * there were none.
+     */
+    fun getDeviationPercentileMs(deviation: Int, percentile: Int): Long {
+        if (deviationCount == 0) {
+            return 0
+        }
+        System.arraycopy(deviationsMs[deviation], 0, sortedDeviationsMs, 0, deviationCount)
+        Arrays.sort(sortedDeviationsMs, 0, deviationCount)
+        val index = Math.min(percentile * deviationCount / 100, deviationCount - 1)
+        return sortedDeviationsMs[index]
+    }
+
+    /**
+     * Clears frame rate statistics, e.g. when the timer restarts after being stopped. Deviations
+     * are kept so they still cover the frames before the restart.
+     */
+    fun reset() {
+        lastFrameDurationMs = 0
+        windowStartMs = 0
+        windowFrameCount = 0
+        achievedFps = 0
+        targetSlotMs = 0
+        tickMs = 0
+    }
+}
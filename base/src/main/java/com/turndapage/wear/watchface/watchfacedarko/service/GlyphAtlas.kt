@@ -0,0 +1,193 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import android.graphics.Paint
+import android.graphics.Rect
+
+/**
+ * Characters the countdown text is drawn from: digits, separators and the ellipsis TextRect
+ * adds to cut text.
+ */
+const val COUNTDOWN_GLYPHS = "0123456789:. \u2026"
+
+/**
+ * The numerals on the dial, see DialGeometry. Each is a cell of its own, so multi-digit numerals
+ * keep the spacing the font gives them.
+ */
+val DIAL_NUMERAL_STRINGS = arrayOf("12", "3", "6", "9")
+
+/**
+ * Transparent pixels around each cell's ink, so anti-aliased edges aren't clipped.
+ */
+private const val CELL_PADDING = 2
+
+/**
+ * Width the cells are packed into rows of.
+ */
+private const val MAX_ATLAS_WIDTH = 512
+
+/**
+ * A bitmap holding [glyphs] and [strings] pre-rendered with [paint], so drawing text made of
+ * them is a blit per cell instead of shaping and rasterizing the (custom) font every time. Build
+ * one per font, size and color; the atlas never changes afterwards, so it can be drawn from any
+ * thread.
+ *
+ * Text is laid out with the advances the font gives each glyph on its own, and positioned by the
+ * paint's text alignment like Canvas.drawText. Cells are blitted at whole pixel positions.
+ */
+class GlyphAtlas(paint: Paint, glyphs: String, strings: Array<String>) {
+
+    private val align = paint.textAlign
+    private val glyphChars = glyphs.toCharArray()
+    private val strings = strings.copyOf()
+
+    /* Per cell, glyphs first and then strings. */
+    private val advances: FloatArray
+    /* Where each cell is in the atlas. */
+    private val srcRects: Array<Rect>
+    /* Where each cell is drawn, relative to the pen position on the baseline. */
+    private val dstRects: Array<Rect>
+
+    private val bitmap: Bitmap
+
+    init {
+        val cellCount = glyphChars.size + strings.size
+        val cellText = Array(cellCount) {
+            if (it < glyphChars.size) glyphChars[it].toString() else strings[it - glyphChars.size]
+        }
+        val cellPaint = Paint(paint).apply { textAlign = Paint.Align.LEFT }
+
+        advances = FloatArray(cellCount)
+        val inkBounds = Rect()
+        dstRects = Array(cellCount) {
+            advances[it] = cellPaint.measureText(cellText[it])
+            cellPaint.getTextBounds(cellText[it], 0, cellText[it].length, inkBounds)
+            if (inkBounds.isEmpty) {
+                Rect()
+            } else {
+                Rect(inkBounds.left - CELL_PADDING, inkBounds.top - CELL_PADDING,
+                        inkBounds.right + CELL_PADDING, inkBounds.bottom + CELL_PADDING)
+            }
+        }
+
+        // Pack the cells in rows, left to right.
+        srcRects = Array(cellCount) { Rect() }
+        var x = 0
+        var y = 0
+        var rowHeight = 0
+        var atlasWidth = 1
+        for (i in 0 until cellCount) {
+            val width = dstRects[i].width()
+            val height = dstRects[i].height()
+            if (x + width > MAX_ATLAS_WIDTH && x > 0) {
+                x = 0
+                y += rowHeight
+                rowHeight = 0
+            }
+            srcRects[i].set(x, y, x + width, y + height)
+            x += width
+            rowHeight = Math.max(rowHeight, height)
+            atlasWidth = Math.max(atlasWidth, x)
+        }
+
+        bitmap = Bitmap.createBitmap(atlasWidth, Math.max(y + rowHeight, 1),
+                Bitmap.Config.ARGB_8888)
+        val canvas = Canvas(bitmap)
+        for (i in 0 until cellCount) {
+            if (!srcRects[i].isEmpty) {
+                canvas.drawText(cellText[i], (srcRects[i].left - dstRects[i].left).toFloat(),
+                        (srcRects[i].top - dstRects[i].top).toFloat(), cellPaint)
+            }
+        }
+    }
+
+    /**
+     * Draws [text] with its baseline at [y], like Canvas.drawText. Returns false, drawing
+     * nothing, if the text isn't one of the atlas strings or made of atlas glyphs only.
+     */
+    fun draw(canvas: Canvas, text: String, x: Float, y: Float): Boolean {
+        return draw(canvas, text, 0, text.length, x, y)
+    }
+
+    /**
+     * Draws the characters of [text] from [start] to [end] (exclusive), see [draw].
+     */
+    fun draw(canvas: Canvas, text: String, start: Int, end: Int, x: Float, y: Float): Boolean {
+        val string = findString(text, start, end)
+        var width = 0f
+        if (string >= 0) {
+            width = advances[string]
+        } else {
+            for (i in start until end) {
+                val glyph = findGlyph(text[i])
+                if (glyph < 0) {
+                    return false
+                }
+                width += advances[glyph]
+            }
+        }
+
+        var penX = when (align) {
+            Paint.Align.CENTER -> x - width / 2
+            Paint.Align.RIGHT -> x - width
+            else -> x
+        }
+        val baseline = Math.round(y).toFloat()
+        if (string >= 0) {
+            drawCell(canvas, string, penX, baseline)
+            return true
+        }
+        for (i in start until end) {
+            val glyph = findGlyph(text[i])
+            drawCell(canvas, glyph, penX, baseline)
+            penX += advances[glyph]
+        }
+        return true
+    }
+
+    private fun drawCell(canvas: Canvas, cell: Int, penX: Float, baseline: Float) {
+        if (srcRects[cell].isEmpty) {
+            return
+        }
+        canvas.save()
+        canvas.translate(Math.round(penX).toFloat(), baseline)
+        canvas.drawBitmap(bitmap, srcRects[cell], dstRects[cell], null)
+        canvas.restore()
+    }
+
+    private fun findGlyph(char: Char): Int {
+        for (i in glyphChars.indices) {
+            if (glyphChars[i] == char) {
+                return i
+            }
+        }
+        return -1
+    }
+
+    private fun findString(text: String, start: Int, end: Int): Int {
+        for (i in strings.indices) {
+            if (strings[i].length == end - start && text.regionMatches(start, strings[i], 0,
+                            end - start)) {
+                return glyphChars.size + i
+            }
+        }
+        return -1
+    }
+}
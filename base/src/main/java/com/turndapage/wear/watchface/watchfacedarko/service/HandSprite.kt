@@ -0,0 +1,306 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.graphics.*
+import android.graphics.drawable.Drawable
+
+/**
+ * Alpha at or above which a pixel of an ambient sprite is kept (made fully opaque); anything below
+ * is cleared.
+ */
+private const val AMBIENT_ALPHA_THRESHOLD = 128
+
+/**
+ * A rasterized hand and where its top left corner goes when the hand points at 12.
+ */
+class SpriteRaster internal constructor(
+        val bitmap: Bitmap,
+        val left: Float,
+        val top: Float,
+        internal val version: Int)
+
+/**
+ * A watch hand rasterized once per render mode, so drawing it is a single rotated bitmap blit
+ * instead of re-rendering paths, blurring shadows and anti-aliasing every frame.
+ *
+ * Subclasses draw the hand in surface coordinates pointing at 12, exactly as it would be drawn
+ * straight onto the watch face; the sprite only covers [bounds]. Interactive sprites get the
+ * shadow baked in and anti-aliased edges, unless turned off with [setInteractiveQuality]. Ambient
+ * sprites have no shadow and hard (non anti-aliased) edges.
+ *
+ * Sprites are double buffered like the dial layers: [rasterize] can run on the render thread
+ * while the current raster, even if stale, keeps being drawn, and [install] swaps the new one in
+ * on the main thread. Only if there is no raster at all does [draw] rasterize in place.
+ *
+ * @param bounds the area on the surface the hand covers when pointing at 12, without its shadow.
+ * @param shadowRadius blur radius of the interactive shadow, or 0 for none.
+ */
+abstract class HandSprite(
+        bounds: Rect,
+        private val shadowRadius: Float,
+        private val shadowColor: Int) {
+
+    private val left = bounds.left
+    private val top = bounds.top
+    private val width = Math.max(bounds.width(), 1)
+    private val height = Math.max(bounds.height(), 1)
+
+    private val rasters = arrayOfNulls<SpriteRaster>(RENDER_MODE_COUNT)
+    private val stale = BooleanArray(RENDER_MODE_COUNT)
+    private val requested = BooleanArray(RENDER_MODE_COUNT)
+
+    /*
+     * Read by rasterize on the render thread. version is written last, so a raster whose version
+     * still matches was made with the current quality.
+     */
+    @Volatile private var antiAlias = true
+    @Volatile private var shadow = true
+    @Volatile private var version = 0
+
+    private val matrix = Matrix()
+
+    /**
+     * Draws the hand rotated by [degrees] around ([pivotX], [pivotY]) with [paint], which sets
+     * the bitmap filtering and alpha.
+     */
+    fun draw(canvas: Canvas, renderMode: Int, degrees: Float, pivotX: Float, pivotY: Float,
+             paint: Paint?) {
+        var raster = rasters[renderMode]
+        if (raster == null) {
+            // Nothing to show until the render thread is done, so don't wait for it.
+            raster = rasterize(renderMode)
+            install(renderMode, raster)
+        }
+        matrix.setTranslate(raster.left, raster.top)
+        matrix.postRotate(degrees, pivotX, pivotY)
+        canvas.drawBitmap(raster.bitmap, matrix, paint)
+    }
+
+    /**
+     * Turns anti-aliasing and the baked shadow of the interactive sprite on or off. The
+     * interactive raster is kept, but stale, until a new one is installed.
+     */
+    fun setInteractiveQuality(antiAlias: Boolean, shadow: Boolean) {
+        if (antiAlias == this.antiAlias && shadow == this.shadow) {
+            return
+        }
+        this.antiAlias = antiAlias
+        this.shadow = shadow
+        version++
+        stale[RENDER_MODE_INTERACTIVE] = true
+        requested[RENDER_MODE_INTERACTIVE] = false
+    }
+
+    /**
+     * Returns whether a raster should be requested for [renderMode]: it is missing or stale and
+     * not already being rasterized.
+     */
+    fun needsRequest(renderMode: Int): Boolean {
+        return (rasters[renderMode] == null || stale[renderMode]) && !requested[renderMode]
+    }
+
+    fun markRequested(renderMode: Int) {
+        requested[renderMode] = true
+    }
+
+    /**
+     * Swaps in [raster] for [renderMode]. Returns false, and recycles [raster], if it was made
+     * before the quality changed or the sprite was released.
+     */
+    fun install(renderMode: Int, raster: SpriteRaster): Boolean {
+        requested[renderMode] = false
+        if (raster.version != version) {
+            raster.bitmap.recycle()
+            return false
+        }
+        rasters[renderMode]?.bitmap?.recycle()
+        rasters[renderMode] = raster
+        stale[renderMode] = false
+        return true
+    }
+
+    /**
+     * Frees all rasterized sprites and drops any still being rasterized.
+     */
+    fun release() {
+        version++
+        for (i in rasters.indices) {
+            rasters[i]?.bitmap?.recycle()
+            rasters[i] = null
+        }
+    }
+
+    /**
+     * Draws the hand pointing at 12 in surface coordinates.
+     */
+    protected abstract fun drawHand(canvas: Canvas, ambient: Boolean, antiAlias: Boolean)
+
+    /**
+     * Rasterizes the hand for [renderMode] at the current quality. Safe to call from any thread.
+     */
+    fun rasterize(renderMode: Int): SpriteRaster {
+        val rasterVersion = version
+        val antiAlias = this.antiAlias
+        val shadow = this.shadow
+
+        val ambient = renderMode != RENDER_MODE_INTERACTIVE
+        val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
+        val canvas = Canvas(bitmap)
+        canvas.translate(-left.toFloat(), -top.toFloat())
+        // Drawable hands share their drawable, so only one thread may draw it at a time.
+        synchronized(this) {
+            drawHand(canvas, ambient, antiAlias && !ambient)
+        }
+
+        if (ambient) {
+            hardenEdges(bitmap)
+            return SpriteRaster(bitmap, left.toFloat(), top.toFloat(), rasterVersion)
+        }
+        if (!shadow || shadowRadius <= 0f) {
+            return SpriteRaster(bitmap, left.toFloat(), top.toFloat(), rasterVersion)
+        }
+        val offsetXY = IntArray(2)
+        val shadowed = bakeShadow(bitmap, offsetXY)
+        return SpriteRaster(shadowed, (left + offsetXY[0]).toFloat(),
+                (top + offsetXY[1]).toFloat(), rasterVersion)
+    }
+
+    /**
+     * Returns a copy of [src] with its blurred shadow drawn underneath, the same effect as
+     * drawing it with Paint.setShadowLayer(shadowRadius, 0, 0, shadowColor). The returned bitmap
+     * is larger than [src] to fit the shadow; [offsetXY] is set to where its top left corner is
+     * relative to [src].
+     */
+    private fun bakeShadow(src: Bitmap, offsetXY: IntArray): Bitmap {
+        val blurPaint = Paint()
+        blurPaint.maskFilter = BlurMaskFilter(shadowRadius, BlurMaskFilter.Blur.NORMAL)
+        val shadowAlpha = src.extractAlpha(blurPaint, offsetXY)
+
+        val bmOut = Bitmap.createBitmap(shadowAlpha.width, shadowAlpha.height,
+                Bitmap.Config.ARGB_8888)
+        val canvas = Canvas(bmOut)
+        val shadowPaint = Paint()
+        shadowPaint.color = shadowColor
+        canvas.drawBitmap(shadowAlpha, 0f, 0f, shadowPaint)
+        canvas.drawBitmap(src, -offsetXY[0].toFloat(), -offsetXY[1].toFloat(), null)
+        shadowAlpha.recycle()
+        src.recycle()
+        return bmOut
+    }
+
+    /**
+     * Snaps every pixel to fully opaque or fully transparent, the bitmap equivalent of turning
+     * anti-aliasing off.
+     */
+    private fun hardenEdges(bitmap: Bitmap) {
+        val pixels = IntArray(bitmap.width * bitmap.height)
+        bitmap.getPixels(pixels, 0, bitmap.width, 0, 0, bitmap.width, bitmap.height)
+        for (i in pixels.indices) {
+            pixels[i] = if (Color.alpha(pixels[i]) >= AMBIENT_ALPHA_THRESHOLD)
+                pixels[i] or 0xFF000000.toInt() else Color.TRANSPARENT
+        }
+        bitmap.setPixels(pixels, 0, bitmap.width, 0, 0, bitmap.width, bitmap.height)
+    }
+}
+
+/**
+ * A hand drawn from a (vector) drawable tinted with [color], or white in ambient mode. Drawable
+ * hands have never had a shadow, so none is baked in.
+ */
+class DrawableHandSprite(
+        private val drawable: Drawable,
+        private val handBounds: Rect,
+        private val color: Int) : HandSprite(handBounds, 0f, Color.TRANSPARENT) {
+
+    override fun drawHand(canvas: Canvas, ambient: Boolean, antiAlias: Boolean) {
+        drawable.bounds = handBounds
+        drawable.colorFilter = PorterDuffColorFilter(
+                if (ambient) Color.WHITE else color, PorterDuff.Mode.MULTIPLY)
+        drawable.draw(canvas)
+    }
+}
+
+/**
+ * A hand drawn as a round capped line from [startY] up to [endY] at [centerX], in [color] or white
+ * in ambient mode.
+ */
+class LineHandSprite(
+        private val centerX: Float,
+        private val startY: Float,
+        private val endY: Float,
+        private val strokeWidth: Float,
+        private val color: Int,
+        shadowRadius: Float,
+        shadowColor: Int) : HandSprite(
+        lineBounds(centerX, startY, endY, strokeWidth), shadowRadius, shadowColor) {
+
+    override fun drawHand(canvas: Canvas, ambient: Boolean, antiAlias: Boolean) {
+        val paint = Paint().apply {
+            color = if (ambient) Color.WHITE else this@LineHandSprite.color
+            strokeWidth = this@LineHandSprite.strokeWidth
+            isAntiAlias = antiAlias
+            strokeCap = Paint.Cap.ROUND
+        }
+        canvas.drawLine(centerX, startY, centerX, endY, paint)
+    }
+}
+
+/**
+ * The filled circle all hands connect with, in [color] or white in ambient mode.
+ */
+class CenterCircleSprite(
+        private val centerX: Float,
+        private val centerY: Float,
+        private val radius: Float,
+        private val color: Int,
+        shadowRadius: Float,
+        shadowColor: Int) : HandSprite(
+        circleBounds(centerX, centerY, radius), shadowRadius, shadowColor) {
+
+    override fun drawHand(canvas: Canvas, ambient: Boolean, antiAlias: Boolean) {
+        val paint = Paint().apply {
+            color = if (ambient) Color.WHITE else this@CenterCircleSprite.color
+            isAntiAlias = antiAlias
+            style = Paint.Style.FILL
+        }
+        canvas.drawCircle(centerX, centerY, radius, paint)
+    }
+}
+
+/**
+ * Returns the bounds of a vertical line including its round caps.
+ */
+private fun lineBounds(centerX: Float, startY: Float, endY: Float, strokeWidth: Float): Rect {
+    val halfWidth = strokeWidth / 2
+    return Rect(
+            Math.floor((centerX - halfWidth).toDouble()).toInt(),
+            Math.floor((Math.min(startY, endY) - halfWidth).toDouble()).toInt(),
+            Math.ceil((centerX + halfWidth).toDouble()).toInt(),
+            Math.ceil((Math.max(startY, endY) + halfWidth).toDouble()).toInt())
+}
+
+/**
+ * Returns the bounds of a circle.
+ */
+private fun circleBounds(centerX: Float, centerY: Float, radius: Float): Rect {
+    return Rect(
+            Math.floor((centerX - radius).toDouble()).toInt(),
+            Math.floor((centerY - radius).toDouble()).toInt(),
+            Math.ceil((centerX + radius).toDouble()).toInt(),
+            Math.ceil((centerY + radius).toDouble()).toInt())
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+/**
+ * Why a frame was requested, as bit flags so the reasons merged into one frame can be combined:
+ * - INVALIDATE_REASON_SECOND_HAND - the interactive update timer.
+ * - INVALIDATE_REASON_TIME_TICK - the once a minute time tick.
+ * - INVALIDATE_REASON_COMPLICATION_DATA - a complication got new data.
+ * - INVALIDATE_REASON_UNREAD_COUNT - the unread notification count changed.
+ * - INVALIDATE_REASON_TIME_ZONE - the time zone changed.
+ * - INVALIDATE_REASON_MUTE - mute mode was turned on or off.
+ * - INVALIDATE_REASON_QUALITY - the rendering quality tier changed.
+ * - INVALIDATE_REASON_VISIBILITY - the watch face became visible.
+ * - INVALIDATE_REASON_AMBIENT - ambient mode was entered or left.
+ * - INVALIDATE_REASON_SETTINGS - a user setting changed.
+ * - INVALIDATE_REASON_LAYER_READY - the render thread finished a layer.
+ * - INVALIDATE_REASON_COMPLICATION_TEXT - time-dependent complication text changed.
+ */
+const val INVALIDATE_REASON_SECOND_HAND = 1
+const val INVALIDATE_REASON_TIME_TICK = 1 shl 1
+const val INVALIDATE_REASON_COMPLICATION_DATA = 1 shl 2
+const val INVALIDATE_REASON_UNREAD_COUNT = 1 shl 3
+const val INVALIDATE_REASON_TIME_ZONE = 1 shl 4
+const val INVALIDATE_REASON_MUTE = 1 shl 5
+const val INVALIDATE_REASON_QUALITY = 1 shl 6
+const val INVALIDATE_REASON_VISIBILITY = 1 shl 7
+const val INVALIDATE_REASON_AMBIENT = 1 shl 8
+const val INVALIDATE_REASON_SETTINGS = 1 shl 9
+const val INVALIDATE_REASON_LAYER_READY = 1 shl 10
+const val INVALIDATE_REASON_COMPLICATION_TEXT = 1 shl 11
+const val INVALIDATE_REASON_COUNT = 12
+
+/**
+ * Returned by [InvalidationCoalescer.request] when the request was merged into a frame that is
+ * already on its way.
+ */
+const val INVALIDATE_MERGED = -1L
+
+/**
+ * Reasons that are drawn straight away rather than waiting for the window to pass: the second
+ * hand and complication text changes are already scheduled onto their instant, the time tick has
+ * to be drawn before the watch goes back to sleep in ambient mode, entering or leaving ambient
+ * mode and becoming visible have to show the right frame at once, and a finished layer replaces
+ * a stale one that is on screen.
+ */
+private const val IMMEDIATE_REASONS = INVALIDATE_REASON_SECOND_HAND or
+        INVALIDATE_REASON_TIME_TICK or INVALIDATE_REASON_COMPLICATION_TEXT or
+        INVALIDATE_REASON_AMBIENT or INVALIDATE_REASON_VISIBILITY or
+        INVALIDATE_REASON_LAYER_READY
+
+/**
+ * Merges bursts of invalidation requests (e.g. all complications updating together on wake) into
+ * at most one frame per [windowMs], remembering why each frame was requested.
+ *
+ * All times are SystemClock.uptimeMillis(), the clock Handler delays use.
+ */
+class InvalidationCoalescer(private val windowMs: Long) {
+
+    /** Number of times the watch face was actually invalidated. */
+    var invalidationCount: Long = 0
+        private set
+
+    /** Number of requests merged into a frame that was already requested. */
+    var mergedCount: Long = 0
+        private set
+
+    /** Reasons merged into the frame that is currently requested but not drawn yet. */
+    var pendingReasons: Int = 0
+        private set
+
+    private var lastInvalidateMs: Long = -windowMs
+
+    /* Whether a frame was requested (invalidated or scheduled) and hasn't been drawn yet. */
+    private var frameRequested: Boolean = false
+
+    /* Whether the requested frame is waiting for the window to pass. */
+    private var scheduled: Boolean = false
+
+    private val frameCounts = LongArray(INVALIDATE_REASON_COUNT)
+
+    /**
+     * Requests a frame for [reason]. Returns 0 if the watch face should be invalidated now,
+     * [INVALIDATE_MERGED] if a frame is already on its way, or otherwise how long to wait
+     * before calling [flush].
+     */
+    fun request(reason: Int, timeMs: Long): Long {
+        pendingReasons = pendingReasons or reason
+
+        if (scheduled) {
+            mergedCount++
+            if (reason and IMMEDIATE_REASONS != 0) {
+                scheduled = false
+                markInvalidated(timeMs)
+                return 0
+            }
+            return INVALIDATE_MERGED
+        }
+
+        val sinceLastMs = timeMs - lastInvalidateMs
+        if (frameRequested && sinceLastMs < windowMs) {
+            // Invalidated but not drawn yet; the coming frame will include this.
+            mergedCount++
+            return INVALIDATE_MERGED
+        }
+
+        if (reason and IMMEDIATE_REASONS != 0 || sinceLastMs >= windowMs) {
+            markInvalidated(timeMs)
+            return 0
+        }
+        frameRequested = true
+        scheduled = true
+        return windowMs - sinceLastMs
+    }
+
+    /**
+     * Call when the delay returned by [request] has passed. Returns true if the watch face
+     * should be invalidated now, or false if a frame was already drawn in the meantime.
+     */
+    fun flush(timeMs: Long): Boolean {
+        if (!scheduled) {
+            return false
+        }
+        scheduled = false
+        markInvalidated(timeMs)
+        return true
+    }
+
+    /**
+     * Call when a frame is drawn. Returns the reasons it was requested for, or 0 if it was
+     * requested by the system (e.g. the surface changed).
+     */
+    fun onFrameDrawn(): Int {
+        val reasons = pendingReasons
+        for (i in 0 until INVALIDATE_REASON_COUNT) {
+            if (reasons and (1 shl i) != 0) {
+                frameCounts[i]++
+            }
+        }
+        pendingReasons = 0
+        frameRequested = false
+        scheduled = false
+        return reasons
+    }
+
+    /**
+     * Returns how many frames were drawn with [reason] among their reasons.
+     */
+    fun getFrameCount(reason: Int): Long {
+        return frameCounts[Integer.numberOfTrailingZeros(reason)]
+    }
+
+    /**
+     * Forgets any requested frame, e.g. when the watch face is hidden and won't be drawn.
+     */
+    fun reset() {
+        pendingReasons = 0
+        frameRequested = false
+        scheduled = false
+    }
+
+    private fun markInvalidated(timeMs: Long) {
+        lastInvalidateMs = timeMs
+        frameRequested = true
+        invalidationCount++
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+/**
+ * Render layers, as bit flags:
+ * - LAYER_DIAL - background, ticks and numerals.
+ * - LAYER_HOUR_MINUTE_HANDS - the hour and minute hands and the center circle.
+ * - LAYER_SECOND_HAND - the second hand.
+ * - LAYER_COMPLICATION_FIRST - the first complication slot; slot i is
+ *   LAYER_COMPLICATION_FIRST shl i.
+ */
+const val LAYER_DIAL = 1
+const val LAYER_HOUR_MINUTE_HANDS = 1 shl 1
+const val LAYER_SECOND_HAND = 1 shl 2
+const val LAYER_COMPLICATION_FIRST = 1 shl 3
+
+private const val COMPLICATION_LAYER_INDEX = 3
+
+/**
+ * Inputs that concern a single complication slot.
+ */
+private const val COMPLICATION_SLOT_INPUTS =
+        INVALIDATE_REASON_COMPLICATION_DATA or INVALIDATE_REASON_COMPLICATION_TEXT
+
+/**
+ * Names of the INVALIDATE_REASON_ inputs, indexed by bit, for the debug dump.
+ */
+private val INPUT_NAMES = arrayOf("second hand", "time tick", "complication data",
+        "unread count", "time zone", "mute", "quality", "visibility", "ambient", "settings",
+        "layer ready", "complication text")
+
+/**
+ * Which inputs (INVALIDATE_REASON_ flags) each render layer depends on, so an event only marks
+ * the layers it affects dirty, and an event no layer depends on doesn't draw at all.
+ *
+ * The dirty layers only pick between drawing nothing, drawing from the composite frame and
+ * rebuilding it. They don't redraw cached layers: a dirty complication layer is only redrawn if
+ * [ComplicationLayerCache] finds it stale, and a dirty dial only once its [DialLayerCache] was
+ * invalidated, e.g. by a quality change.
+ *
+ * It also counts how many times each input dirtied each layer, see [dump].
+ */
+class LayerDependencies(private val complicationSlotCount: Int) {
+
+    private val layerCount = COMPLICATION_LAYER_INDEX + complicationSlotCount
+    private val layerInputs = IntArray(layerCount)
+    private val dirtyCounts = Array(INVALIDATE_REASON_COUNT) { LongArray(layerCount) }
+
+    /**
+     * Makes every layer in [layers] depend on every input in [inputs].
+     */
+    fun dependOn(layers: Int, inputs: Int) {
+        for (i in 0 until layerCount) {
+            if (layers and (1 shl i) != 0) {
+                layerInputs[i] = layerInputs[i] or inputs
+            }
+        }
+    }
+
+    /**
+     * Returns the layers [input] makes dirty and records them for [dump]. Complication data and
+     * text only dirty the layer of [complicationSlot].
+     */
+    fun markDirty(input: Int, complicationSlot: Int = -1): Int {
+        var layers = 0
+        for (i in 0 until layerCount) {
+            if (layerInputs[i] and input == 0) {
+                continue
+            }
+            if (input and COMPLICATION_SLOT_INPUTS != 0 &&
+                    i != COMPLICATION_LAYER_INDEX + complicationSlot) {
+                continue
+            }
+            layers = layers or (1 shl i)
+        }
+
+        val counts = dirtyCounts[Integer.numberOfTrailingZeros(input)]
+        for (i in 0 until layerCount) {
+            if (layers and (1 shl i) != 0) {
+                counts[i]++
+            }
+        }
+        return layers
+    }
+
+    /**
+     * Returns one line per input listing how many times it dirtied each layer, or "none" if it
+     * never dirtied any.
+     */
+    fun dump(): String {
+        val builder = StringBuilder()
+        for (input in 0 until INVALIDATE_REASON_COUNT) {
+            builder.append(INPUT_NAMES[input]).append(':')
+            var any = false
+            for (layer in 0 until layerCount) {
+                val count = dirtyCounts[input][layer]
+                if (count > 0) {
+                    builder.append(' ').append(getLayerName(layer)).append(' ').append(count)
+                    any = true
+                }
+            }
+            if (!any) {
+                builder.append(" none")
+            }
+            builder.append('\n')
+        }
+        return builder.toString()
+    }
+
+    private fun getLayerName(layer: Int): String {
+        return when (layer) {
+            0 -> "dial"
+            1 -> "hour/minute hands"
+            2 -> "second hand"
+            else -> "complication ${layer - COMPLICATION_LAYER_INDEX + 1}"
+        }
+    }
+}
+
+/**
+ * Returns the dependencies of the layers drawn with [complicationSlots]. Nothing draws the unread
+ * count, so it dirties no layer.
+ */
+fun buildLayerDependencies(complicationSlots: ComplicationSlots): LayerDependencies {
+    val dependencies = LayerDependencies(complicationSlots.count)
+
+    dependencies.dependOn(LAYER_DIAL, INVALIDATE_REASON_AMBIENT or INVALIDATE_REASON_QUALITY)
+    dependencies.dependOn(LAYER_HOUR_MINUTE_HANDS, INVALIDATE_REASON_TIME_TICK or
+            INVALIDATE_REASON_TIME_ZONE or INVALIDATE_REASON_AMBIENT or INVALIDATE_REASON_MUTE or
+            INVALIDATE_REASON_QUALITY)
+    dependencies.dependOn(LAYER_SECOND_HAND, INVALIDATE_REASON_SECOND_HAND or
+            INVALIDATE_REASON_TIME_ZONE or INVALIDATE_REASON_AMBIENT or INVALIDATE_REASON_MUTE or
+            INVALIDATE_REASON_QUALITY)
+    for (i in 0 until complicationSlots.count) {
+        // Complication text can depend on the time and zone, e.g. "in 5 min" or "10:30".
+        dependencies.dependOn(LAYER_COMPLICATION_FIRST shl i,
+                INVALIDATE_REASON_COMPLICATION_DATA or INVALIDATE_REASON_COMPLICATION_TEXT or
+                INVALIDATE_REASON_TIME_TICK or INVALIDATE_REASON_TIME_ZONE or
+                INVALIDATE_REASON_AMBIENT or INVALIDATE_REASON_SETTINGS)
+    }
+
+    dependencies.dependOn(LAYER_DIAL or LAYER_HOUR_MINUTE_HANDS or LAYER_SECOND_HAND,
+            INVALIDATE_REASON_LAYER_READY)
+
+    // Nothing was drawn while invisible, so everything has to be drawn again.
+    dependencies.dependOn(-1, INVALIDATE_REASON_VISIBILITY)
+    return dependencies
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Looper
+import android.os.Process
+
+/**
+ * A worker thread that composes expensive layers off the main thread. Work only gets the inputs
+ * it captured, and its result is handed back on the main thread, where it is swapped into the
+ * front buffer that onDraw blits. onDraw never waits for it.
+ */
+class LayerRenderThread {
+
+    private val thread = HandlerThread("LayerRenderThread", Process.THREAD_PRIORITY_DISPLAY)
+    private val workerHandler: Handler
+    private val mainHandler = Handler(Looper.getMainLooper())
+
+    init {
+        thread.start()
+        workerHandler = Handler(thread.looper)
+    }
+
+    /**
+     * Runs [work] on the render thread, then [onComposed] with its result on the main thread.
+     */
+    fun <T> compose(work: () -> T, onComposed: (T) -> Unit) {
+        workerHandler.post {
+            val result = work()
+            mainHandler.post { onComposed(result) }
+        }
+    }
+
+    /**
+     * Stops the thread once queued work is done. Results still delivered afterwards must be
+     * dropped by whoever receives them.
+     */
+    fun quit() {
+        thread.quitSafely()
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.graphics.Bitmap
+
+/**
+ * How much of a frame an OLED screen lights:
+ * - litRatio - fraction of pixels with any channel above 0, 0-1.
+ * - meanLuminance - average luminance over all pixels, 0-1.
+ */
+class LitPixelStats(val litRatio: Float, val meanLuminance: Float)
+
+/**
+ * Measures how much of [frame] is lit. Ambient power on OLED screens scales with both. Safe to
+ * call from any thread.
+ */
+fun analyzeLitPixels(frame: Bitmap): LitPixelStats {
+    val width = frame.width
+    val height = frame.height
+    if (width == 0 || height == 0) {
+        return LitPixelStats(0f, 0f)
+    }
+    val row = IntArray(width)
+    var litCount = 0L
+    var luminanceSum = 0L
+    for (y in 0 until height) {
+        frame.getPixels(row, 0, width, 0, y, width, 1)
+        for (x in 0 until width) {
+            // Any nonzero channel lights the pixel, even one too dim to have any luma.
+            if ((row[x] and 0xFFFFFF) != 0) {
+                litCount++
+                luminanceSum += getLuminance(row[x])
+            }
+        }
+    }
+    val pixelCount = width.toFloat() * height
+    return LitPixelStats(litCount / pixelCount, luminanceSum / 255f / pixelCount)
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.graphics.Bitmap
+import android.graphics.Color
+import java.nio.ByteBuffer
+
+/**
+ * Returns the luminance of [layer] as an ALPHA_8 bitmap, a quarter of the size of an ARGB_8888
+ * one. Drawn with a white paint over black it gives back a gray [layer]; other colors are drawn
+ * as their luminance. Safe to call from any thread.
+ */
+fun toLuminanceLayer(layer: Bitmap): Bitmap {
+    val width = layer.width
+    val height = layer.height
+    val luminance = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8)
+    val rowBytes = luminance.rowBytes
+    val buffer = ByteBuffer.allocate(rowBytes * height)
+    val row = IntArray(width)
+    for (y in 0 until height) {
+        layer.getPixels(row, 0, width, 0, y, width, 1)
+        buffer.position(y * rowBytes)
+        for (x in 0 until width) {
+            buffer.put(getLuminance(row[x]).toByte())
+        }
+    }
+    buffer.rewind()
+    luminance.copyPixelsFromBuffer(buffer)
+    return luminance
+}
+
+/**
+ * Returns whether [color] is a shade of gray, so a luminance layer reproduces it exactly.
+ */
+fun isGray(color: Int): Boolean {
+    return Color.red(color) == Color.green(color) && Color.green(color) == Color.blue(color)
+}
+
+/**
+ * Luma of [color] with BT.601 weights scaled to 256, so a gray comes back unchanged.
+ */
+internal fun getLuminance(color: Int): Int {
+    return (Color.red(color) * 77 + Color.green(color) * 150 + Color.blue(color) * 29) shr 8
+}
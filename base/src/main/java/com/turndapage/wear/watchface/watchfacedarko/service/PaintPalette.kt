@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.graphics.Color
+import android.graphics.Paint
+import com.turndapage.wear.watchface.watchfacedarko.model.AnalogWatchFaceStyle
+
+/**
+ * Palettes: one per render mode (indexed by RENDER_MODE_), plus PALETTE_MUTE for interactive mode
+ * with interruptions off, which dims the hands.
+ */
+const val PALETTE_MUTE = RENDER_MODE_COUNT
+const val PALETTE_COUNT = RENDER_MODE_COUNT + 1
+
+/**
+ * The paints one mode draws with. Palettes are built up front and never modified afterwards, so
+ * switching mode is picking another palette rather than restyling shared paints.
+ *
+ * @param numeralGlyphs the dial numerals and countdown glyphs pre-rendered with [numeralPaint].
+ * @param handPaints paint each hand sprite is blitted with, indexed by op.
+ * @param luminanceTint set if the dial of this mode is all gray, so its layer is kept as a
+ *   luminance layer (see toLuminanceLayer) and drawn over [backgroundColor] with this paint.
+ */
+class PaintPalette(
+        val backgroundColor: Int,
+        val tickPaint: Paint,
+        val numeralPaint: Paint,
+        val numeralGlyphs: GlyphAtlas,
+        val handPaints: Array<Paint?>,
+        val luminanceTint: Paint?)
+
+/**
+ * Builds [palette] for [style]. [numeralPaint] supplies the numeral typeface and size. Interactive
+ * palettes draw with anti-aliasing and shadows if [antiAlias] and [shadows] allow; ambient ones
+ * never do.
+ */
+fun buildPaintPalette(
+        palette: Int,
+        style: AnalogWatchFaceStyle,
+        numeralPaint: Paint,
+        antiAlias: Boolean,
+        shadows: Boolean): PaintPalette {
+
+    val ambient = palette == RENDER_MODE_AMBIENT || palette == RENDER_MODE_LOW_BIT_AMBIENT
+    val colors = style.watchFaceColors
+
+    val tickPaint = Paint().apply {
+        color = colors.tickPaint
+        strokeWidth = style.watchFaceDimensions.secondHandWidth
+        isAntiAlias = !ambient && antiAlias
+        this.style = Paint.Style.STROKE
+        if (!ambient && shadows) {
+            setShadowLayer(style.watchFaceDimensions.shadowRadius, 0f, 0f, colors.shadow)
+        }
+    }
+
+    val paletteNumeralPaint = Paint(numeralPaint).apply {
+        color = if (ambient) Color.WHITE else colors.highlight
+        isAntiAlias = palette != RENDER_MODE_LOW_BIT_AMBIENT
+    }
+
+    val handPaints = arrayOfNulls<Paint>(OP_COUNT)
+    for (op in intArrayOf(OP_HOUR_HAND, OP_MINUTE_HAND, OP_SECOND_HAND, OP_CENTER_CIRCLE)) {
+        handPaints[op] = if (!ambient && antiAlias)
+            Paint(Paint.FILTER_BITMAP_FLAG or Paint.ANTI_ALIAS_FLAG)
+        else
+            Paint()
+    }
+    if (palette == PALETTE_MUTE) {
+        handPaints[OP_HOUR_HAND]!!.alpha = 100
+        handPaints[OP_MINUTE_HAND]!!.alpha = 100
+        handPaints[OP_SECOND_HAND]!!.alpha = 80
+    }
+
+    // Best practice is to always use black for watch face in ambient mode (saves battery
+    // and prevents burn-in.
+    return PaintPalette(
+            if (ambient) Color.BLACK else colors.background,
+            tickPaint,
+            paletteNumeralPaint,
+            GlyphAtlas(paletteNumeralPaint, COUNTDOWN_GLYPHS, DIAL_NUMERAL_STRINGS),
+            handPaints,
+            // Ambient dials are black with a grayed image and white numerals; only ticks may
+            // have color.
+            if (ambient && isGray(tickPaint.color)) Paint().apply { color = Color.WHITE } else null)
+}
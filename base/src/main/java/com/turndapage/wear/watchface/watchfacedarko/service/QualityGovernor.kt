@@ -0,0 +1,206 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.util.Log
+
+/**
+ * Rendering quality tiers, from best looking to cheapest:
+ * - QUALITY_TIER_HIGH - anti-aliasing, shadows, the style's second hand rate, complications
+ *   redrawn as soon as their data changes.
+ * - QUALITY_TIER_BALANCED - anti-aliasing but no shadows, second hand capped at
+ *   BALANCED_MAX_SECOND_HAND_FPS.
+ * - QUALITY_TIER_LOW - no anti-aliasing or shadows, second hand ticks once a second and
+ *   complication updates wait for the next minute's composite frame.
+ */
+const val QUALITY_TIER_HIGH = 0
+const val QUALITY_TIER_BALANCED = 1
+const val QUALITY_TIER_LOW = 2
+private const val QUALITY_TIER_COUNT = 3
+
+private const val BALANCED_MAX_SECOND_HAND_FPS = 5
+
+/**
+ * Battery percentage at or below which the tier is at most balanced / low.
+ */
+private const val BALANCED_BATTERY_LEVEL = 30
+private const val LOW_BATTERY_LEVEL = 15
+
+/**
+ * Number of interactive frames the frame time is averaged over, and how often the tier is
+ * re-evaluated.
+ */
+private const val FRAME_WINDOW = 32
+
+/**
+ * Average frame time in milliseconds above which quality is stepped down.
+ */
+private const val SLOW_FRAME_MS = 16f
+
+/**
+ * Frame time the higher tier is predicted to take below which quality steps back up. The gap to
+ * [SLOW_FRAME_MS] keeps a tier that only just fits from being stepped down again right away.
+ */
+private const val STEP_UP_FRAME_MS = 12f
+
+/**
+ * Number of frame windows a tier is kept at least before quality steps back up from it.
+ */
+private const val MIN_TIER_WINDOWS = 8
+
+/**
+ * Picks a rendering quality tier at runtime from battery level, power save mode, mute mode and how
+ * long frames have been taking to draw, so the same build can run on fast and slow watches. Slow
+ * frames can only push the tier lower than the power state alone would pick.
+ */
+class QualityGovernor {
+
+    var tier: Int = QUALITY_TIER_HIGH
+        private set
+
+    private var batteryLevel: Int = 100
+    private var powerSaveMode: Boolean = false
+    private var muteMode: Boolean = false
+
+    /* Tier forced by slow frames, on top of what the power state allows. */
+    private var frameTimeTier: Int = QUALITY_TIER_HIGH
+    private var windowsAtFrameTimeTier: Int = 0
+
+    /*
+     * Average frame time at each tier in the window it was last stepped down from, and at the
+     * tier below in the first window after, so how much faster stepping down made frames is known.
+     */
+    private val frameMsBeforeStepDown = FloatArray(QUALITY_TIER_COUNT)
+    private val frameMsAfterStepDown = FloatArray(QUALITY_TIER_COUNT)
+
+    private val frameTimesMs = FloatArray(FRAME_WINDOW)
+    private var frameIndex: Int = 0
+    private var windowFilled: Boolean = false
+
+    val antiAliasEnabled: Boolean
+        get() = tier != QUALITY_TIER_LOW
+
+    val shadowsEnabled: Boolean
+        get() = tier == QUALITY_TIER_HIGH
+
+    val liveComplicationsEnabled: Boolean
+        get() = tier != QUALITY_TIER_LOW
+
+    /**
+     * Returns the second hand rate to use given the rate the style asks for.
+     */
+    fun getSecondHandFps(styleFps: Int): Int {
+        return when (tier) {
+            QUALITY_TIER_HIGH -> styleFps
+            QUALITY_TIER_BALANCED -> Math.min(styleFps, BALANCED_MAX_SECOND_HAND_FPS)
+            else -> 1
+        }
+    }
+
+    /**
+     * Updates the battery state. Returns true if the tier changed.
+     */
+    fun setBatteryState(level: Int, powerSave: Boolean): Boolean {
+        batteryLevel = level
+        powerSaveMode = powerSave
+        return updateTier("battery $level%, power save $powerSave")
+    }
+
+    /**
+     * Updates the mute (interruption filter none) state. Returns true if the tier changed.
+     */
+    fun setMuteMode(inMuteMode: Boolean): Boolean {
+        muteMode = inMuteMode
+        return updateTier("mute $inMuteMode")
+    }
+
+    /**
+     * Records how long an interactive frame took to draw. Every [FRAME_WINDOW] frames the average
+     * is checked against the frame budget. Quality only steps back up once a tier has been kept
+     * for [MIN_TIER_WINDOWS] windows and the frame time last measured at the higher tier, scaled
+     * by how much faster frames have become since, would fit. Stepping up just because the
+     * cheaper tier is fast would only make frames slow again. Returns true if the tier changed.
+     */
+    fun onFrameDrawn(durationMs: Float): Boolean {
+        frameTimesMs[frameIndex] = durationMs
+        frameIndex = (frameIndex + 1) % FRAME_WINDOW
+        if (frameIndex != 0) {
+            return false
+        }
+        windowFilled = true
+
+        val averageMs = getAverageFrameTimeMs()
+        windowsAtFrameTimeTier++
+        if (frameTimeTier > QUALITY_TIER_HIGH && frameMsAfterStepDown[frameTimeTier] == 0f) {
+            frameMsAfterStepDown[frameTimeTier] = averageMs
+        }
+        if (averageMs > SLOW_FRAME_MS && frameTimeTier < QUALITY_TIER_LOW) {
+            frameMsBeforeStepDown[frameTimeTier] = averageMs
+            frameTimeTier++
+            frameMsAfterStepDown[frameTimeTier] = 0f
+        } else if (frameTimeTier > QUALITY_TIER_HIGH &&
+                windowsAtFrameTimeTier >= MIN_TIER_WINDOWS &&
+                getHigherTierFrameTimeMs(averageMs) < STEP_UP_FRAME_MS) {
+            frameTimeTier--
+        } else {
+            return false
+        }
+        windowsAtFrameTimeTier = 0
+        return updateTier("average frame time ${averageMs}ms")
+    }
+
+    /**
+     * Predicts the frame time one tier up from [averageMs] at the current frame time tier.
+     */
+    private fun getHigherTierFrameTimeMs(averageMs: Float): Float {
+        val afterMs = frameMsAfterStepDown[frameTimeTier]
+        if (afterMs <= 0f) {
+            return Float.MAX_VALUE
+        }
+        return frameMsBeforeStepDown[frameTimeTier - 1] * averageMs / afterMs
+    }
+
+    /**
+     * Returns the average duration of the last [FRAME_WINDOW] interactive frames.
+     */
+    fun getAverageFrameTimeMs(): Float {
+        val count = if (windowFilled) FRAME_WINDOW else frameIndex
+        if (count == 0) {
+            return 0f
+        }
+        var total = 0f
+        for (i in 0 until count) {
+            total += frameTimesMs[i]
+        }
+        return total / count
+    }
+
+    private fun updateTier(reason: String): Boolean {
+        val powerTier = when {
+            powerSaveMode || batteryLevel <= LOW_BATTERY_LEVEL -> QUALITY_TIER_LOW
+            muteMode || batteryLevel <= BALANCED_BATTERY_LEVEL -> QUALITY_TIER_BALANCED
+            else -> QUALITY_TIER_HIGH
+        }
+        val newTier = Math.max(powerTier, frameTimeTier)
+        if (newTier == tier) {
+            return false
+        }
+        Log.i("Tag", "Quality tier $tier -> $newTier ($reason)")
+        tier = newTier
+        return true
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import com.turndapage.wear.watchface.watchfacedarko.model.WatchFaceComplication
+
+/**
+ * Draw ops a [RenderPlan] is made of:
+ * - OP_DIAL - blit the cached dial layer (background, ticks and numerals).
+ * - OP_COMPOSITE_FRAME - blit the cached per-minute frame, rebuilding it from compositeOps first
+ *   if it is stale.
+ * - OP_COMPLICATIONS - draw all complications (unless hidden in ambient by the user).
+ * - OP_HOUR_HAND, OP_MINUTE_HAND, OP_SECOND_HAND, OP_CENTER_CIRCLE - blit the matching sprite.
+ */
+const val OP_DIAL = 0
+const val OP_COMPOSITE_FRAME = 1
+const val OP_COMPLICATIONS = 2
+const val OP_HOUR_HAND = 3
+const val OP_MINUTE_HAND = 4
+const val OP_SECOND_HAND = 5
+const val OP_CENTER_CIRCLE = 6
+const val OP_COUNT = 7
+
+/**
+ * Everything needed to draw a frame in one render mode, resolved from the style and surface size
+ * ahead of time so drawing is a single walk over [frameOps] with no style lookups.
+ *
+ * @param frameOps ops drawn every frame, in order.
+ * @param compositeOps ops drawn into the per-minute composite frame by OP_COMPOSITE_FRAME.
+ * @param handSprites sprite for each hand op, indexed by op.
+ */
+class RenderPlan(
+        val renderMode: Int,
+        val frameOps: IntArray,
+        val compositeOps: IntArray,
+        val handSprites: Array<HandSprite?>,
+        val pivotX: Float,
+        val pivotY: Float)
+
+/**
+ * Compiles the plan for [renderMode]. Interactive frames cache everything but the second hand in
+ * a composite frame, since only the second hand moves between minutes. Ambient frames are drawn
+ * once a minute, so they are drawn directly and never show the second hand.
+ */
+fun compileRenderPlan(
+        complicationSlots: ComplicationSlots,
+        renderMode: Int,
+        dialGeometry: DialGeometry,
+        hourHandSprite: HandSprite,
+        minuteHandSprite: HandSprite,
+        secondHandSprite: HandSprite,
+        centerCircleSprite: HandSprite): RenderPlan {
+
+    val handSprites = arrayOfNulls<HandSprite>(OP_COUNT)
+    handSprites[OP_HOUR_HAND] = hourHandSprite
+    handSprites[OP_MINUTE_HAND] = minuteHandSprite
+    handSprites[OP_SECOND_HAND] = secondHandSprite
+    handSprites[OP_CENTER_CIRCLE] = centerCircleSprite
+
+    val minuteOps = ArrayList<Int>()
+    minuteOps.add(OP_DIAL)
+    if (complicationSlots.count > 0) {
+        minuteOps.add(OP_COMPLICATIONS)
+    }
+    minuteOps.add(OP_HOUR_HAND)
+    minuteOps.add(OP_MINUTE_HAND)
+
+    val frameOps: IntArray
+    val compositeOps: IntArray
+    if (renderMode == RENDER_MODE_INTERACTIVE) {
+        compositeOps = minuteOps.toIntArray()
+        frameOps = intArrayOf(OP_COMPOSITE_FRAME, OP_SECOND_HAND, OP_CENTER_CIRCLE)
+    } else {
+        minuteOps.add(OP_CENTER_CIRCLE)
+        compositeOps = IntArray(0)
+        frameOps = minuteOps.toIntArray()
+    }
+
+    return RenderPlan(renderMode, frameOps, compositeOps, handSprites,
+            dialGeometry.centerX, dialGeometry.centerY)
+}
+
+/**
+ * Returns whether a complication slot has any area on screen. Unused slots default to a zero
+ * size at -100, -100.
+ */
+internal fun isOnScreen(complication: WatchFaceComplication): Boolean {
+    return complication.widthRatio > 0f && complication.heightRatio > 0f &&
+            complication.xPos + complication.widthRatio / 2 > 0f &&
+            complication.yPos + complication.heightRatio / 2 > 0f
+}
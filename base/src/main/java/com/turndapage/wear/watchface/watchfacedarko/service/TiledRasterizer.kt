@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.graphics.Bitmap
+import android.graphics.Canvas
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.RejectedExecutionException
+
+/**
+ * Most threads layers are rasterized on, however many cores the watch has.
+ */
+const val MAX_RASTER_THREADS = 4
+
+/**
+ * Layers shorter than this many rows per tile are drawn in one piece, as splitting them costs
+ * more than it saves.
+ */
+private const val MIN_TILE_HEIGHT = 32
+
+/**
+ * Rasterizes large layers as [tileCount] horizontal tiles in parallel, then stitches them into
+ * one bitmap. The calling thread draws the first tile straight into the result while a bounded
+ * pool draws the others into tile bitmaps. A tile count of 1 draws single threaded.
+ *
+ * The draw function is called once per tile, on several threads at once, with the canvas clipped
+ * to (or translated for) that tile, so it must only read what it draws from.
+ */
+class TiledRasterizer(val tileCount: Int) {
+
+    private val executor: ExecutorService? =
+            if (tileCount > 1) Executors.newFixedThreadPool(tileCount - 1) else null
+
+    /**
+     * Returns a [width] x [height] bitmap of [config] drawn by [draw]. Tiles are drawn in the
+     * same config, so an opaque config is only fine for layers [draw] fills completely.
+     */
+    fun rasterize(width: Int, height: Int, config: Bitmap.Config,
+                  draw: (Canvas) -> Unit): Bitmap {
+        val bitmap = Bitmap.createBitmap(width, height, config)
+        if (executor == null || height < tileCount * MIN_TILE_HEIGHT) {
+            draw(Canvas(bitmap))
+            return bitmap
+        }
+
+        val tileHeight = (height + tileCount - 1) / tileCount
+        val tileTops = IntArray(tileCount - 1)
+        val tiles = arrayOfNulls<Future<Bitmap>>(tileCount - 1)
+        for (i in 1 until tileCount) {
+            val top = i * tileHeight
+            val bottom = Math.min(top + tileHeight, height)
+            tileTops[i - 1] = top
+            if (top >= bottom) {
+                continue
+            }
+            try {
+                tiles[i - 1] = executor.submit(
+                        Callable { drawTile(width, top, bottom, config, draw) })
+            } catch (e: RejectedExecutionException) {
+                // Shut down while a layer was still being composed; draw it here instead.
+                drawTile(bitmap, top, bottom, draw)
+            }
+        }
+
+        drawTile(bitmap, 0, tileHeight, draw)
+
+        val stitchCanvas = Canvas(bitmap)
+        for (i in tiles.indices) {
+            val tile = tiles[i]?.get() ?: continue
+            stitchCanvas.drawBitmap(tile, 0f, tileTops[i].toFloat(), null)
+            tile.recycle()
+        }
+        return bitmap
+    }
+
+    fun shutdown() {
+        executor?.shutdown()
+    }
+
+    private fun drawTile(width: Int, top: Int, bottom: Int, config: Bitmap.Config,
+                         draw: (Canvas) -> Unit): Bitmap {
+        val tile = Bitmap.createBitmap(width, bottom - top, config)
+        val canvas = Canvas(tile)
+        canvas.translate(0f, -top.toFloat())
+        draw(canvas)
+        return tile
+    }
+
+    private fun drawTile(bitmap: Bitmap, top: Int, bottom: Int, draw: (Canvas) -> Unit) {
+        val canvas = Canvas(bitmap)
+        canvas.clipRect(0, top, bitmap.width, bottom)
+        draw(canvas)
+    }
+}
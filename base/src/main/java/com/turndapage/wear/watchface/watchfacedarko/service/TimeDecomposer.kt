@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import android.text.format.DateUtils
+import java.util.TimeZone
+
+/**
+ * How far ahead a zone transition is looked for. The cached offset is trusted for no longer.
+ */
+private const val TRANSITION_SEARCH_MS = DateUtils.DAY_IN_MILLIS
+
+/**
+ * Step the search takes through [TRANSITION_SEARCH_MS]. Offsets hold for longer than this, so two
+ * transitions that cancel out can't both fall inside one step.
+ */
+private const val TRANSITION_SCAN_STEP_MS = DateUtils.HOUR_IN_MILLIS
+
+/**
+ * Splits epoch milliseconds into local hour, minute, second and millisecond with integer
+ * arithmetic, as a cheap replacement for Calendar.setTimeInMillis() and Calendar.get() per frame.
+ *
+ * The UTC offset is cached together with the span of time it is valid for, which ends at the next
+ * zone transition (e.g. a DST change), so the time zone is only consulted about once a day. Call
+ * [setTimeZone] when the zone changes.
+ */
+class TimeDecomposer(private var timeZone: TimeZone) {
+
+    /** Hour of the morning or afternoon, 0-11, like Calendar.HOUR. */
+    var hour: Int = 0
+        private set
+    /** Hour of the day, 0-23, like Calendar.HOUR_OF_DAY. */
+    var hourOfDay: Int = 0
+        private set
+    var minute: Int = 0
+        private set
+    var second: Int = 0
+        private set
+    var millisecond: Int = 0
+        private set
+
+    private var offsetMs: Int = 0
+    /* Span of time [offsetMs] is valid for; empty until the first setTime. */
+    private var offsetValidFromMs: Long = 0
+    private var offsetValidUntilMs: Long = 0
+
+    fun setTimeZone(timeZone: TimeZone) {
+        this.timeZone = timeZone
+        offsetValidUntilMs = offsetValidFromMs
+    }
+
+    fun setTime(timeMs: Long) {
+        if (timeMs < offsetValidFromMs || timeMs >= offsetValidUntilMs) {
+            updateOffset(timeMs)
+        }
+
+        val localMs = timeMs + offsetMs
+        val msOfDay = localMs - Math.floorDiv(localMs, DateUtils.DAY_IN_MILLIS) *
+                DateUtils.DAY_IN_MILLIS
+        val secondOfDay = (msOfDay / DateUtils.SECOND_IN_MILLIS).toInt()
+
+        millisecond = (msOfDay % DateUtils.SECOND_IN_MILLIS).toInt()
+        second = secondOfDay % 60
+        minute = secondOfDay / 60 % 60
+        hourOfDay = secondOfDay / 3600
+        hour = hourOfDay % 12
+    }
+
+    /**
+     * Caches the offset at [timeMs] and finds how long it holds: steps through the next
+     * [TRANSITION_SEARCH_MS] for the first step the offset changes in, then binary searches that
+     * step for the millisecond it changes. If it doesn't change, the offset holds until the end
+     * of the search and is looked up again then.
+     */
+    private fun updateOffset(timeMs: Long) {
+        offsetMs = timeZone.getOffset(timeMs)
+        offsetValidFromMs = timeMs
+
+        val searchEndMs = timeMs + TRANSITION_SEARCH_MS
+        var startMs = timeMs
+        var endMs = timeMs + TRANSITION_SCAN_STEP_MS
+        while (timeZone.getOffset(endMs) == offsetMs) {
+            if (endMs >= searchEndMs) {
+                offsetValidUntilMs = searchEndMs
+                return
+            }
+            startMs = endMs
+            endMs = Math.min(endMs + TRANSITION_SCAN_STEP_MS, searchEndMs)
+        }
+        while (endMs - startMs > 1) {
+            val middleMs = (startMs + endMs) ushr 1
+            if (timeZone.getOffset(middleMs) == offsetMs) {
+                startMs = middleMs
+            } else {
+                endMs = middleMs
+            }
+        }
+        offsetValidUntilMs = endMs
+    }
+}
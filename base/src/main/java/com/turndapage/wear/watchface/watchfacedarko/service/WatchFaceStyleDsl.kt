@@ -42,6 +42,7 @@ class WatchFaceComplicationBuilder {
                     ComplicationData.TYPE_SMALL_IMAGE, ComplicationData.TYPE_ICON,
                     ComplicationData.TYPE_RANGED_VALUE),
             "defaultProviderService" to null,
+            "defaultProviderType" to null,
             "titleTypeface" to EMPTY_IMAGE_RESOURCE
     )
 
@@ -51,12 +52,19 @@ class WatchFaceComplicationBuilder {
     var yPos:Float by attributesMap
     var supportedTypes:IntArray by attributesMap
     var defaultProviderService:Class<*>? by attributesMap
+    var defaultProviderType:Int? by attributesMap
     var titleTypeface:Int by attributesMap
 
     fun build(): WatchFaceComplication {
+        // Long text if the slot supports it, short text otherwise.
+        val providerType = defaultProviderType ?:
+                if (supportedTypes.contains(ComplicationData.TYPE_LONG_TEXT))
+                    ComplicationData.TYPE_LONG_TEXT
+                else
+                    ComplicationData.TYPE_SHORT_TEXT
         return WatchFaceComplication(
                 widthRatio, heightRatio, xPos, yPos, supportedTypes,
-                defaultProviderService, titleTypeface
+                defaultProviderService, providerType, titleTypeface
         )
     }
 }
@@ -68,16 +76,28 @@ class WatchFaceStyleBuilder {
             "rightNumber" to false,
             "bottomNumber" to false,
             "leftNumber" to false,
-            "statusGravity" to Gravity.TOP
+            "statusGravity" to Gravity.TOP,
+            "secondHandFps" to 1,
+            "ambientLitPixelBudget" to 0.15f
     )
     var topNumber:Boolean by attributesMap
     var rightNumber:Boolean by attributesMap
     var bottomNumber:Boolean by attributesMap
     var leftNumber:Boolean by attributesMap
     var statusGravity:Int by attributesMap
+    var secondHandFps:Int by attributesMap
+    var ambientLitPixelBudget:Float by attributesMap
 
     fun build(): WatchFaceStyle {
-        return WatchFaceStyle(topNumber, rightNumber, bottomNumber, leftNumber, statusGravity)
+        if (secondHandFps !in SUPPORTED_SECOND_HAND_FPS) {
+            throw IllegalStateException("secondHandFps must be one of " +
+                    "${SUPPORTED_SECOND_HAND_FPS.joinToString()}.")
+        }
+        if (ambientLitPixelBudget !in 0f..1f) {
+            throw IllegalStateException("ambientLitPixelBudget must be between 0 and 1.")
+        }
+        return WatchFaceStyle(topNumber, rightNumber, bottomNumber, leftNumber, statusGravity,
+                secondHandFps, ambientLitPixelBudget)
     }
 }
 
@@ -186,13 +206,15 @@ class WatchFaceBackgroundImageBuilder {
     // A background image isn't required for a watch face, so if it isn't defined in the DSL,
     // it gets an empty image resource value which means it won't be rendered.
     private val attributesMap: MutableMap<String, Any?> = mutableMapOf(
-            "backgroundImageResource" to EMPTY_IMAGE_RESOURCE
+            "backgroundImageResource" to EMPTY_IMAGE_RESOURCE,
+            "rgb565" to false
     )
 
     var backgroundImageResource:Int by attributesMap
+    var rgb565:Boolean by attributesMap
 
     fun build(): WatchFaceBackgroundImage {
-        return WatchFaceBackgroundImage(backgroundImageResource)
+        return WatchFaceBackgroundImage(backgroundImageResource, rgb565)
     }
 }
 
@@ -204,25 +226,17 @@ class AnalogWatchFaceStyleBuilder {
         WatchFaceBackgroundImageBuilder().build()
     private var watchFaceHourHand: WatchFaceHourHand = WatchFaceHourHandBuilder().build()
     private var watchFaceMinuteHand: WatchFaceMinuteHand = WatchFaceMinuteHandBuilder().build()
-    private var watchFaceComplication1: WatchFaceComplication = WatchFaceComplicationBuilder().build()
-    private var watchFaceComplication2: WatchFaceComplication = WatchFaceComplicationBuilder().build()
-    private var watchFaceComplication3: WatchFaceComplication = WatchFaceComplicationBuilder().build()
+    private val watchFaceComplications: MutableList<WatchFaceComplication> = mutableListOf()
     private var watchFaceStyle: WatchFaceStyle = WatchFaceStyleBuilder().build()
 
-    fun watchFaceComplication1(setup: WatchFaceComplicationBuilder.() -> Unit) {
-        val watchFaceComplicationsBuilder = WatchFaceComplicationBuilder()
-        watchFaceComplicationsBuilder.setup()
-        watchFaceComplication1 = watchFaceComplicationsBuilder.build()
-    }
-    fun watchFaceComplication2(setup: WatchFaceComplicationBuilder.() -> Unit) {
-        val watchFaceComplicationsBuilder = WatchFaceComplicationBuilder()
-        watchFaceComplicationsBuilder.setup()
-        watchFaceComplication2 = watchFaceComplicationsBuilder.build()
-    }
-    fun watchFaceComplication3(setup: WatchFaceComplicationBuilder.() -> Unit) {
+    /**
+     * Adds a complication. Complications are numbered in the order they are added, which must
+     * stay the same between releases since the user's providers are saved by number.
+     */
+    fun watchFaceComplication(setup: WatchFaceComplicationBuilder.() -> Unit) {
         val watchFaceComplicationsBuilder = WatchFaceComplicationBuilder()
         watchFaceComplicationsBuilder.setup()
-        watchFaceComplication3 = watchFaceComplicationsBuilder.build()
+        watchFaceComplications.add(watchFaceComplicationsBuilder.build())
     }
 
     fun watchFaceMinuteHand(setup: WatchFaceMinuteHandBuilder.() -> Unit) {
@@ -270,15 +284,18 @@ class AnalogWatchFaceStyleBuilder {
         val watchFaceDimensionsArgument = watchFaceDimensions ?:
             throw IllegalStateException("Must define watch face dimensions in DSL.")
 
+        if (watchFaceComplications.size > MAX_STYLE_COMPLICATIONS) {
+            throw IllegalStateException("At most $MAX_STYLE_COMPLICATIONS complications can be " +
+                    "defined in DSL, one per button of the config screen.")
+        }
+
         return AnalogWatchFaceStyle(
                 watchFaceColorsArgument,
                 watchFaceDimensionsArgument,
                 watchFaceBackgroundImage,
                 watchFaceHourHand,
                 watchFaceMinuteHand,
-                watchFaceComplication1,
-                watchFaceComplication2,
-                watchFaceComplication3,
+                watchFaceComplications.toList(),
                 watchFaceStyle
         )
     }
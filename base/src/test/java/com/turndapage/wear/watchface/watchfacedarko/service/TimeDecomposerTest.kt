@@ -0,0 +1,210 @@
+/*
+ * Copyright 2018 Google LLC
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.turndapage.wear.watchface.watchfacedarko.service
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.Calendar
+import java.util.GregorianCalendar
+import java.util.SimpleTimeZone
+import java.util.TimeZone
+
+/**
+ * 2018-01-01T00:00:00Z; the sweeps cover 2018, which has both DST transitions in every zone
+ * tested.
+ */
+private const val SWEEP_START_MS = 1514764800000L
+private const val SWEEP_END_MS = SWEEP_START_MS + 365 * 24 * 3600 * 1000L
+
+/**
+ * Step of the year long sweep: an odd number of milliseconds so every field takes many values.
+ */
+private const val YEAR_STEP_MS = 433457L
+
+/**
+ * How far either side of a transition, and in what steps, the dense sweep goes.
+ */
+private const val TRANSITION_WINDOW_MS = 2 * 3600 * 1000L
+private const val TRANSITION_STEP_MS = 997L
+
+private const val BENCHMARK_ITERATIONS = 1000000
+
+/**
+ * Checks [TimeDecomposer] against GregorianCalendar, the class it replaces, across DST
+ * transitions and in zones with :30 offsets, and times both.
+ */
+class TimeDecomposerTest {
+
+    private val zoneIds = arrayOf(
+            "America/New_York",
+            "Europe/London",
+            // +5:30 all year.
+            "Asia/Kolkata",
+            // -3:30, with DST.
+            "America/St_Johns",
+            // +10:30, and DST only moves it by 30 minutes.
+            "Australia/Lord_Howe")
+
+    @Test
+    fun matchesCalendarOverAYear() {
+        for (zoneId in zoneIds) {
+            val timeZone = TimeZone.getTimeZone(zoneId)
+            val decomposer = TimeDecomposer(timeZone)
+            val calendar = GregorianCalendar(timeZone)
+            var timeMs = SWEEP_START_MS
+            while (timeMs < SWEEP_END_MS) {
+                assertMatches(zoneId, decomposer, calendar, timeMs)
+                timeMs += YEAR_STEP_MS
+            }
+        }
+    }
+
+    @Test
+    fun matchesCalendarAcrossTransitions() {
+        for (zoneId in zoneIds) {
+            val timeZone = TimeZone.getTimeZone(zoneId)
+            val transitions = findTransitions(timeZone)
+            if (timeZone.useDaylightTime()) {
+                assertEquals("$zoneId transitions in 2018", 2, transitions.size)
+            }
+            for (transitionMs in transitions) {
+                // One decomposer per transition, so its cached offset is from before it.
+                val decomposer = TimeDecomposer(timeZone)
+                val calendar = GregorianCalendar(timeZone)
+                var timeMs = transitionMs - TRANSITION_WINDOW_MS
+                while (timeMs < transitionMs + TRANSITION_WINDOW_MS) {
+                    assertMatches(zoneId, decomposer, calendar, timeMs)
+                    timeMs += TRANSITION_STEP_MS
+                }
+                // And exactly on either side of it.
+                assertMatches(zoneId, decomposer, calendar, transitionMs - 1)
+                assertMatches(zoneId, decomposer, calendar, transitionMs)
+            }
+        }
+    }
+
+    @Test
+    fun matchesCalendarAcrossTwoTransitionsInADay() {
+        // Daylight time from 02:00 to 14:00 on March 10th only, so a day after the first
+        // transition the offset is back where it was.
+        val timeZone = SimpleTimeZone(0, "Test/HalfDayDst", Calendar.MARCH, 10, 0,
+                2 * 3600 * 1000, Calendar.MARCH, 10, 0, 14 * 3600 * 1000)
+        val transitions = findTransitions(timeZone)
+        assertEquals("Test/HalfDayDst transitions in 2018", 2, transitions.size)
+
+        // Starting before the first transition, so one offset lookup has to find it.
+        val decomposer = TimeDecomposer(timeZone)
+        val calendar = GregorianCalendar(timeZone)
+        var timeMs = transitions[0] - TRANSITION_WINDOW_MS
+        while (timeMs < transitions[1] + TRANSITION_WINDOW_MS) {
+            assertMatches(timeZone.id, decomposer, calendar, timeMs)
+            timeMs += TRANSITION_STEP_MS
+        }
+    }
+
+    @Test
+    fun followsTimeZoneChanges() {
+        val decomposer = TimeDecomposer(TimeZone.getTimeZone("Europe/London"))
+        decomposer.setTime(SWEEP_START_MS)
+        assertEquals(0, decomposer.hourOfDay)
+
+        decomposer.setTimeZone(TimeZone.getTimeZone("Asia/Kolkata"))
+        decomposer.setTime(SWEEP_START_MS)
+        assertEquals(5, decomposer.hourOfDay)
+        assertEquals(30, decomposer.minute)
+    }
+
+    /**
+     * Not a pass/fail check: prints how long each path takes per call, stepping a frame (33 ms)
+     * at a time like a sweeping second hand.
+     */
+    @Test
+    fun benchmarkAgainstCalendar() {
+        val timeZone = TimeZone.getTimeZone("America/New_York")
+        val decomposer = TimeDecomposer(timeZone)
+        val calendar = GregorianCalendar(timeZone)
+        var sink = 0
+
+        // Warm up both paths before timing them.
+        for (round in 0 until 2) {
+            var timeMs = SWEEP_START_MS
+            var startNanos = System.nanoTime()
+            for (i in 0 until BENCHMARK_ITERATIONS) {
+                decomposer.setTime(timeMs)
+                sink += decomposer.hour + decomposer.minute + decomposer.second
+                timeMs += 33
+            }
+            val decomposerNanos = System.nanoTime() - startNanos
+
+            timeMs = SWEEP_START_MS
+            startNanos = System.nanoTime()
+            for (i in 0 until BENCHMARK_ITERATIONS) {
+                calendar.timeInMillis = timeMs
+                sink += calendar.get(Calendar.HOUR) + calendar.get(Calendar.MINUTE) +
+                        calendar.get(Calendar.SECOND)
+                timeMs += 33
+            }
+            val calendarNanos = System.nanoTime() - startNanos
+
+            if (round == 1) {
+                println("TimeDecomposer: ${decomposerNanos / BENCHMARK_ITERATIONS} ns/call, " +
+                        "GregorianCalendar: ${calendarNanos / BENCHMARK_ITERATIONS} ns/call")
+            }
+        }
+        // Keeps the loops from being optimized away.
+        assertTrue(sink != 0)
+    }
+
+    private fun assertMatches(zoneId: String, decomposer: TimeDecomposer,
+                              calendar: GregorianCalendar, timeMs: Long) {
+        decomposer.setTime(timeMs)
+        calendar.timeInMillis = timeMs
+        val message = "$zoneId at $timeMs"
+        assertEquals(message, calendar.get(Calendar.HOUR), decomposer.hour)
+        assertEquals(message, calendar.get(Calendar.HOUR_OF_DAY), decomposer.hourOfDay)
+        assertEquals(message, calendar.get(Calendar.MINUTE), decomposer.minute)
+        assertEquals(message, calendar.get(Calendar.SECOND), decomposer.second)
+        assertEquals(message, calendar.get(Calendar.MILLISECOND), decomposer.millisecond)
+    }
+
+    /**
+     * Returns the first millisecond of each offset change of [timeZone] in the sweep year.
+     */
+    private fun findTransitions(timeZone: TimeZone): List<Long> {
+        val transitions = ArrayList<Long>()
+        val stepMs = 3600 * 1000L
+        var timeMs = SWEEP_START_MS
+        while (timeMs < SWEEP_END_MS) {
+            if (timeZone.getOffset(timeMs) != timeZone.getOffset(timeMs + stepMs)) {
+                var startMs = timeMs
+                var endMs = timeMs + stepMs
+                while (endMs - startMs > 1) {
+                    val middleMs = (startMs + endMs) / 2
+                    if (timeZone.getOffset(middleMs) == timeZone.getOffset(timeMs)) {
+                        startMs = middleMs
+                    } else {
+                        endMs = middleMs
+                    }
+                }
+                transitions.add(endMs)
+            }
+            timeMs += stepMs
+        }
+        return transitions
+    }
+}